@@ -0,0 +1,174 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.bench;
+
+import unidata.ast.runtime.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/* Encode and decode time of one message through ASTRuntime,
+   for every combination of encoding, AbstractIO and sample shape
+   (see Samples). The runtime and the IO objects are created once
+   per trial and rebound for each operation, as a long running
+   reader or writer would do, so the numbers are those of the
+   encodings themselves rather than of setup.
+   ByteIO reads from, and writes to, memory; FileIO reads from
+   and writes to a temporary file that is rewound each time.
+*/
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+
+public enum IOKind {ByteIO, FileIO};
+
+@Param({"Protobuf","XDR"})
+public ASTRuntime.Encoder encoding;
+
+@Param({"ByteIO","FileIO"})
+public IOKind io;
+
+@Param({"varint","fixed","packed","packedwide","ascii","unicode","nested"})
+public Samples.Shape shape;
+
+//////////////////////////////////////////////////
+// Instance fields
+
+AbstractMessage message = null; // what write() encodes
+AbstractMessage target = null; // what read() decodes into
+byte[] encoded = null;
+
+ASTRuntime writert = null;
+ASTRuntime readrt = null;
+
+// ByteIO
+ByteArrayOutputStream bytesink = null;
+ByteIO bytewriter = null;
+
+// FileIO
+File infile = null;
+File outfile = null;
+FileInputStream filesource = null;
+FileOutputStream filesink = null;
+FileIO filereader = null;
+FileIO filewriter = null;
+
+//////////////////////////////////////////////////
+// Setup
+
+@Setup(Level.Trial)
+public void
+setup()
+    throws IOException
+{
+    message = Samples.create(shape);
+    target = Samples.newMessage(shape);
+    encoded = encode(encoding,message);
+
+    switch (io) {
+    case ByteIO:
+	bytesink = new ByteArrayOutputStream(encoded.length);
+	bytewriter = new ByteIO(bytesink);
+	writert = new ASTRuntime(encoding,bytewriter);
+	readrt = new ASTRuntime(encoding,new ByteIO(encoded));
+	break;
+    case FileIO:
+	infile = File.createTempFile("astbench",".in");
+	outfile = File.createTempFile("astbench",".out");
+	FileOutputStream fos = new FileOutputStream(infile);
+	fos.write(encoded);
+	fos.close();
+	filesource = new FileInputStream(infile);
+	filesink = new FileOutputStream(outfile);
+	filereader = new FileIO(filesource);
+	filewriter = new FileIO(filesink);
+	writert = new ASTRuntime(encoding,filewriter);
+	readrt = new ASTRuntime(encoding,filereader);
+	break;
+    }
+    message.rt = writert;
+    target.rt = readrt;
+}
+
+@TearDown(Level.Trial)
+public void
+teardown()
+    throws IOException
+{
+    if(filesource != null) filesource.close();
+    if(filesink != null) filesink.close();
+    if(infile != null) infile.delete();
+    if(outfile != null) outfile.delete();
+}
+
+/* Reference encoding of msg, also used as the read input */
+static byte[]
+encode(ASTRuntime.Encoder encoding, AbstractMessage msg)
+    throws IOException
+{
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    msg.rt = new ASTRuntime(encoding,new ByteIO(bos));
+    msg.write();
+    msg.rt.flush();
+    return bos.toByteArray();
+}
+
+//////////////////////////////////////////////////
+// Benchmarks
+
+@Benchmark
+public long
+write()
+    throws IOException
+{
+    switch (io) {
+    case ByteIO:
+	bytesink.reset();
+	bytewriter.setStream(bytesink);
+	writert.reset(bytewriter);
+	message.write();
+	writert.flush();
+	return bytesink.size();
+    case FileIO:
+	filesink.getChannel().position(0);
+	filewriter.setStream(filesink);
+	writert.reset(filewriter);
+	message.write();
+	writert.flush();
+	return filesink.getChannel().position();
+    }
+    return 0;
+}
+
+@Benchmark
+public AbstractMessage
+read()
+    throws IOException
+{
+    switch (io) {
+    case ByteIO:
+	readrt.reset(new ByteIO(encoded));
+	break;
+    case FileIO:
+	filesource.getChannel().position(0);
+	filereader.setStream(filesource);
+	readrt.reset(filereader);
+	break;
+    }
+    return target.read();
+}
+
+}
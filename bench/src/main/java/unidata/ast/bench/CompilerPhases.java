@@ -0,0 +1,382 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.bench;
+
+import gnu.getopt.Getopt;
+import unidata.ast.compiler.*;
+import unidata.ast.compiler.generators.c.CGenerator;
+import unidata.ast.compiler.generators.c.CSemantics;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/* Time each phase of the compiler separately:
+     lex                 - ProtobufLexer.yylex over every input file
+     parse               - ProtobufParser.parse, imports included
+     semantics.<step>    - each step of ProtobufSemantics.process
+     csemantics          - CSemantics.process
+     generate            - CGenerator.generate
+   and report, per phase, the mean wall time and the bytes
+   allocated by the compiling thread (where the JVM can tell).
+   Note that the phases do not see I/O alike: lex reads every
+   file from memory, but parse only has the top file in memory
+   and, like the compiler itself, locates and reads each import
+   from disk, so its time includes that import I/O (from the OS
+   file cache, after the warmup compilations). Similarly,
+   generate includes writing the generated files.
+   Inputs are synthetic schema sets (see SchemaGenerator), one per
+   requested size, and/or real .proto files named on the command line.
+   Each input is compiled -w times to warm up, then -r times measured.
+
+   usage: CompilerPhases [-n sizes] [-d depth] [-i imports]
+                         [-w warmups] [-r repeats] [-j json] [-I dir]*
+                         [file.proto]*
+     -n  comma separated message counts (default 10,100,1000,10000)
+     -d  nesting depth of the synthetic messages (default 4)
+     -i  number of imported files per synthetic set (default 16)
+     -j  also write the results, as JSON, to this file
+     -I  import search path for real .proto files
+*/
+
+public class CompilerPhases
+{
+
+static final String DFALTSIZES = "10,100,1000,10000";
+
+//////////////////////////////////////////////////
+// Per-phase accumulation
+
+static class Phase
+{
+    String name;
+    long nanos = 0;
+    long bytes = 0;
+    Phase(String name) {this.name = name;}
+}
+
+static class Result
+{
+    String input;
+    int repeats = 0;
+    Map<String,Phase> phases = new LinkedHashMap<String,Phase>();
+
+    Result(String input) {this.input = input;}
+
+    void
+    add(String name, long nanos, long bytes)
+    {
+	Phase p = phases.get(name);
+	if(p == null) {
+	    p = new Phase(name);
+	    phases.put(name,p);
+	}
+	p.nanos += nanos;
+	p.bytes += bytes;
+    }
+}
+
+//////////////////////////////////////////////////
+// Clock: wall time plus allocation of the current thread
+
+static com.sun.management.ThreadMXBean threadbean = null;
+
+static {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(bean instanceof com.sun.management.ThreadMXBean) {
+	threadbean = (com.sun.management.ThreadMXBean)bean;
+	if(threadbean.isThreadAllocatedMemorySupported())
+	    threadbean.setThreadAllocatedMemoryEnabled(true);
+	else
+	    threadbean = null;
+    }
+}
+
+static long
+allocated()
+{
+    if(threadbean == null) return 0;
+    return threadbean.getThreadAllocatedBytes(Thread.currentThread().getId());
+}
+
+/* Records the phases of one compilation into a Result */
+static class Clock implements Semantics.StepListener
+{
+    Result result = null; // null => warmup, record nothing
+    String prefix = "";
+    long lasttime;
+    long lastbytes;
+
+    void
+    start()
+    {
+	lastbytes = allocated();
+	lasttime = System.nanoTime();
+    }
+
+    void
+    mark(String phase)
+    {
+	long now = System.nanoTime();
+	long bytes = allocated();
+	if(result != null)
+	    result.add(prefix+phase,now - lasttime,bytes - lastbytes);
+	// Exclude our own bookkeeping from the next phase
+	lastbytes = allocated();
+	lasttime = System.nanoTime();
+    }
+
+    public void stepdone(String step) {mark(step);}
+}
+
+//////////////////////////////////////////////////
+// Instance fields
+
+List<String> includepaths = new ArrayList<String>();
+
+//////////////////////////////////////////////////
+
+/* Compile the input once, charging each phase to clock */
+void
+compile(File top, List<File> files, Clock clock)
+    throws Exception
+{
+    // Read everything up front so that file I/O is not charged to lex;
+    // parse still reads the imports from disk (see above)
+    List<String> texts = new ArrayList<String>();
+    for(File f: files)
+	texts.add(readfile(f));
+    String topname = top.getPath();
+
+    List<String> paths = new ArrayList<String>(includepaths);
+    paths.add(top.getAbsoluteFile().getParent());
+
+    clock.prefix = "";
+    clock.start();
+    for(int i=0;i<files.size();i++) {
+	ProtobufParser scanner = new ProtobufParser(new ASTFactoryDefault());
+	scanner.reset(files.get(i).getPath(),new StringReader(texts.get(i)));
+	ProtobufParser.Lexer lexer = scanner.getLexer();
+	while(lexer.yylex() != ProtobufParser.EOF) {/*ignore*/}
+    }
+    clock.mark("lex");
+
+    ASTFactory factory = new ASTFactoryDefault();
+    ProtobufParser parser = new ProtobufParser(factory);
+    parser.setIncludePaths(paths);
+    if(!parser.parse(topname,new StringReader(texts.get(0))))
+	throw new Exception("Parse failed: "+topname);
+    clock.mark("parse");
+
+    String[] argv = new String[]{topname};
+    AST.Root root = parser.getAST();
+    ProtobufSemantics sem = new ProtobufSemantics();
+    CSemantics csem = new CSemantics();
+    if(!sem.initialize(root,argv,factory) || !csem.initialize(root,argv,factory))
+	throw new Exception("Semantic initialization failed: "+topname);
+    sem.setStepListener(clock);
+    clock.prefix = "semantics.";
+    clock.start();
+    if(!sem.process(root))
+	throw new Exception("Protobuf semantic error detected: "+topname);
+    clock.prefix = "";
+    clock.start();
+    if(!csem.process(root))
+	throw new Exception("C semantic errors detected: "+topname);
+    clock.mark("csemantics");
+
+    CGenerator generator = new CGenerator();
+    if(!generator.generate(root,argv))
+	throw new Exception("Code generation errors detected: "+topname);
+    clock.mark("generate");
+}
+
+Result
+run(String label, File top, List<File> files, int warmups, int repeats)
+    throws Exception
+{
+    Result result = new Result(label);
+    Clock clock = new Clock();
+    for(int i=0;i<warmups+repeats;i++) {
+	clock.result = (i < warmups ? null : result);
+	compile(top,files,clock);
+    }
+    result.repeats = repeats;
+    return result;
+}
+
+static String
+readfile(File f)
+    throws IOException
+{
+    Reader rdr = new InputStreamReader(new FileInputStream(f),"UTF-8");
+    StringBuilder buf = new StringBuilder();
+    char[] chunk = new char[8192];
+    int count;
+    while((count = rdr.read(chunk)) > 0)
+	buf.append(chunk,0,count);
+    rdr.close();
+    return buf.toString();
+}
+
+static File
+tempdir(String prefix)
+    throws IOException
+{
+    File dir = File.createTempFile(prefix,"");
+    if(!dir.delete() || !dir.mkdir())
+	throw new IOException("Cannot create directory: "+dir);
+    return dir;
+}
+
+static void
+deletetree(File dir)
+{
+    File[] contents = dir.listFiles();
+    if(contents != null)
+	for(File f: contents) f.delete();
+    dir.delete();
+}
+
+//////////////////////////////////////////////////
+// Reporting
+
+static void
+report(List<Result> results, PrintStream out)
+{
+    out.printf("%-28s %-34s %12s %12s%n","input","phase","ms/op","KB/op");
+    for(Result r: results) {
+	long totalnanos = 0;
+	long totalbytes = 0;
+	for(Phase p: r.phases.values()) {
+	    out.printf("%-28s %-34s %12.3f %12.1f%n",r.input,p.name,
+		       p.nanos / 1e6 / r.repeats,
+		       p.bytes / 1024.0 / r.repeats);
+	    totalnanos += p.nanos;
+	    totalbytes += p.bytes;
+	}
+	out.printf("%-28s %-34s %12.3f %12.1f%n",r.input,"total",
+		   totalnanos / 1e6 / r.repeats,
+		   totalbytes / 1024.0 / r.repeats);
+    }
+}
+
+static void
+writejson(List<Result> results, File file)
+    throws IOException
+{
+    PrintWriter w = new PrintWriter(new FileWriter(file));
+    w.println("[");
+    for(int i=0;i<results.size();i++) {
+	Result r = results.get(i);
+	w.printf("  {\"input\": \"%s\", \"repeats\": %d, \"allocation\": %s, \"phases\": [%n",
+		 r.input.replace("\\","\\\\").replace("\"","\\\""),
+		 r.repeats,(threadbean != null));
+	int j = 0;
+	for(Phase p: r.phases.values()) {
+	    w.printf("    {\"phase\": \"%s\", \"nanos\": %d, \"bytes\": %d}%s%n",
+		     p.name,p.nanos / r.repeats,p.bytes / r.repeats,
+		     (++j < r.phases.size() ? "," : ""));
+	}
+	w.printf("  ]}%s%n",(i < results.size()-1 ? "," : ""));
+    }
+    w.println("]");
+    w.close();
+}
+
+//////////////////////////////////////////////////
+
+static public void
+main(String[] argv)
+    throws Exception
+{
+    String sizes = DFALTSIZES;
+    int depth = 4;
+    int nimports = 16;
+    int warmups = 2;
+    int repeats = 5;
+    String jsonfile = null;
+    List<String> protofiles = new ArrayList<String>();
+    CompilerPhases harness = new CompilerPhases();
+
+    int c;
+    Getopt g = new Getopt("CompilerPhases",argv,"-:n:d:i:w:r:j:I:",null);
+    while((c = g.getopt()) != -1) {
+	switch (c) {
+	case 1: protofiles.add(g.getOptarg()); break;
+	case 'n': sizes = g.getOptarg(); break;
+	case 'd': depth = Integer.parseInt(g.getOptarg()); break;
+	case 'i': nimports = Integer.parseInt(g.getOptarg()); break;
+	case 'w': warmups = Integer.parseInt(g.getOptarg()); break;
+	case 'r': repeats = Integer.parseInt(g.getOptarg()); break;
+	case 'j': jsonfile = g.getOptarg(); break;
+	case 'I': harness.includepaths.add(g.getOptarg()); break;
+	default:
+	    System.err.println("usage: CompilerPhases [-n sizes] [-d depth] [-i imports]"
+			       + " [-w warmups] [-r repeats] [-j json] [-I dir]* [file.proto]*");
+	    System.exit(1);
+	}
+    }
+    if(repeats < 1) repeats = 1;
+
+    List<Result> results = new ArrayList<Result>();
+
+    // Synthetic schemas
+    if(sizes.length() > 0) {
+	for(String size: sizes.split(",")) {
+	    int nmessages = Integer.parseInt(size.trim());
+	    File dir = tempdir("astsynth");
+	    try {
+		SchemaGenerator gen = new SchemaGenerator(nmessages,depth,nimports);
+		File top = gen.generate(dir);
+		List<File> files = new ArrayList<File>();
+		files.add(top);
+		for(int i=0;i<nimports;i++)
+		    files.add(new File(dir,SchemaGenerator.filename(i)));
+		String label = String.format("synth-n%d-d%d-i%d",nmessages,depth,nimports);
+		results.add(harness.run(label,top,files,warmups,repeats));
+	    } finally {
+		deletetree(dir);
+	    }
+	}
+    }
+
+    // Real schemas; output is generated in a scratch directory
+    for(String name: protofiles) {
+	File src = new File(name);
+	File dir = tempdir("astreal");
+	try {
+	    File top = new File(dir,src.getName());
+	    writefile(top,readfile(src));
+	    List<File> files = new ArrayList<File>();
+	    files.add(top);
+	    harness.includepaths.add(src.getAbsoluteFile().getParent());
+	    results.add(harness.run(src.getName(),top,files,warmups,repeats));
+	    harness.includepaths.remove(harness.includepaths.size()-1);
+	} finally {
+	    deletetree(dir);
+	}
+    }
+
+    if(threadbean == null)
+	System.err.println("Note: thread allocation counting is not supported by this JVM");
+    report(results,System.out);
+    if(jsonfile != null)
+	writejson(results,new File(jsonfile));
+}
+
+static void
+writefile(File f, String text)
+    throws IOException
+{
+    Writer w = new OutputStreamWriter(new FileOutputStream(f),"UTF-8");
+    w.write(text);
+    w.close();
+}
+
+}
@@ -0,0 +1,170 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.bench;
+
+import unidata.ast.runtime.*;
+import unidata.ast.test.*;
+
+/* Benchmark inputs, built from the messages generated for
+   the test schemas in src/test/java/unidata/ast/test and for
+   the benchmark schema in bench/src/main/proto.
+   Each Shape exercises one part of the encodings:
+     varint  - the varint and zigzag primitives (PrimOptional)
+     fixed   - the fixed width and floating point primitives
+     packed  - packed repeated 32 bit and double primitives (PrimRepeated)
+     packedwide - packed repeated 64 bit, float and bool
+               primitives (Packedbench.PackedWide)
+     ascii   - strings that take the ASCII fast paths (Bytetest)
+     unicode - strings with 2, 3 and 4 byte UTF-8 sequences
+     nested  - required, optional and repeated submessages (Msgtest)
+   The contents are fixed, so results are comparable across runs.
+*/
+
+public class Samples
+{
+
+static final int NELEMS = 256; // elements per packed array
+static final int NSTRINGS = 64; // strings per repeated string field
+static final int NSUBMSGS = 128; // repeated submessages
+
+static final String[] ASCII = new String[]{
+    "temperature","air_pressure","K","hPa","station_id",
+    "time since 1970-01-01 00:00:00 UTC"
+};
+
+// Latin-1, CJK and a supplementary character (a surrogate pair)
+static final String[] UNICODE = new String[]{
+    "température","°C","気温","気圧 hPa",
+    "station 𝐀𝐁","Ångström"
+};
+
+public enum Shape {varint, fixed, packed, packedwide, ascii, unicode, nested};
+
+//////////////////////////////////////////////////
+
+/* A populated message of the given shape */
+static public AbstractMessage
+create(Shape shape)
+{
+    switch (shape) {
+    case varint: {
+	Primtests.PrimOptional m = new Primtests.PrimOptional();
+	m.set_f_int32(-123456);
+	m.set_f_int64(1L << 40);
+	m.set_f_uint32(300);
+	m.set_f_uint64(-1L);
+	m.set_f_sint32(-64);
+	m.set_f_sint64(-(1L << 33));
+	return m;
+	}
+    case fixed: {
+	Primtests.PrimOptional m = new Primtests.PrimOptional();
+	m.set_f_fixed32(0x12345678);
+	m.set_f_fixed64(0x123456789abcdefL);
+	m.set_f_sfixed32(-42);
+	m.set_f_sfixed64(-(1L << 50));
+	m.set_f_double(Math.PI);
+	m.set_f_float(2.5f);
+	return m;
+	}
+    case packed: {
+	Primtests.PrimRepeated m = new Primtests.PrimRepeated();
+	m.f_int32 = new int[NELEMS];
+	m.f_uint32 = new int[NELEMS];
+	m.f_sint32 = new int[NELEMS];
+	m.f_fixed32 = new int[NELEMS];
+	m.f_sfixed32 = new int[NELEMS];
+	m.f_double = new double[NELEMS];
+	for(int i=0;i<NELEMS;i++) {
+	    m.f_int32[i] = i * 1000;
+	    m.f_uint32[i] = i;
+	    m.f_sint32[i] = (i % 2 == 0 ? -i : i);
+	    m.f_fixed32[i] = i * 31;
+	    m.f_sfixed32[i] = -i;
+	    m.f_double[i] = i / 7.0;
+	}
+	return m;
+	}
+    case packedwide: {
+	Packedbench.PackedWide m = new Packedbench.PackedWide();
+	m.f_int64 = new long[NELEMS];
+	m.f_uint64 = new long[NELEMS];
+	m.f_sint64 = new long[NELEMS];
+	m.f_fixed64 = new long[NELEMS];
+	m.f_sfixed64 = new long[NELEMS];
+	m.f_float = new float[NELEMS];
+	m.f_bool = new boolean[NELEMS];
+	for(int i=0;i<NELEMS;i++) {
+	    m.f_int64[i] = (long)i << 33;
+	    m.f_uint64[i] = -1L - i;
+	    m.f_sint64[i] = (i % 2 == 0 ? -((long)i << 20) : (long)i << 20);
+	    m.f_fixed64[i] = i * 0x100000001L;
+	    m.f_sfixed64[i] = -i;
+	    m.f_float[i] = i / 3.0f;
+	    m.f_bool[i] = (i % 3 == 0);
+	}
+	return m;
+	}
+    case ascii:
+	return strings(ASCII);
+    case unicode:
+	return strings(UNICODE);
+    case nested: {
+	Msgtests.Msgtest m = new Msgtests.Msgtest();
+	m.rqmsg = submsg(1);
+	m.opmsg = submsg(-2);
+	m.rpmsg = new Msgtests.Msgtest.Submsg[NSUBMSGS];
+	for(int i=0;i<NSUBMSGS;i++)
+	    m.rpmsg[i] = submsg(i * 977);
+	return m;
+	}
+    }
+    throw new IllegalArgumentException("Samples: unknown shape: "+shape);
+}
+
+/* An empty message of the type used for the given shape */
+static public AbstractMessage
+newMessage(Shape shape)
+{
+    switch (shape) {
+    case varint: case fixed:
+	return new Primtests.PrimOptional();
+    case packed:
+	return new Primtests.PrimRepeated();
+    case packedwide:
+	return new Packedbench.PackedWide();
+    case ascii: case unicode:
+	return new Bytetests.Bytetest();
+    case nested:
+	return new Msgtests.Msgtest();
+    }
+    throw new IllegalArgumentException("Samples: unknown shape: "+shape);
+}
+
+static Bytetests.Bytetest
+strings(String[] words)
+{
+    Bytetests.Bytetest m = new Bytetests.Bytetest();
+    m.rqstring = words[0];
+    m.rqbytes = new byte[]{1,2,3,4};
+    m.set_opstring(words[1]);
+    m.rpstring = new String[NSTRINGS];
+    for(int i=0;i<NSTRINGS;i++)
+	m.rpstring[i] = words[i % words.length] + i;
+    return m;
+}
+
+static Msgtests.Msgtest.Submsg
+submsg(int value)
+{
+    Msgtests.Msgtest.Submsg m = new Msgtests.Msgtest.Submsg();
+    m.f_int32 = value;
+    return m;
+}
+
+}
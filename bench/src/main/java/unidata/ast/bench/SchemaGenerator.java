@@ -0,0 +1,139 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.bench;
+
+import java.io.*;
+
+/* Write a synthetic set of .proto files for CompilerPhases.
+   The set has a top file that imports nimports other files and
+   holds about nmessages messages in total (but at least one
+   chain per file).
+   Messages come in chains: a top level message FfMi (file f,
+   chain i) containing N1, which contains N2, and so on down to
+   the given depth. Every message has scalar, string, enum and
+   packed fields, plus fields that refer by path
+     - to the enclosing message, e.g. F0M3.N1 from F0M3.N1.N2, and
+     - in the top file, to a message in one of the imported files,
+   so that type name resolution has work to do at every level.
+   The files declare no package, so all their names are visible
+   to one another; top level names are unique across the set.
+*/
+
+public class SchemaGenerator
+{
+
+static final String PREFIX = "synth";
+
+//////////////////////////////////////////////////
+// Instance fields
+
+int nmessages;
+int depth;
+int nimports;
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+SchemaGenerator(int nmessages, int depth, int nimports)
+{
+    this.nmessages = (nmessages < 1 ? 1 : nmessages);
+    this.depth = (depth < 0 ? 0 : depth);
+    this.nimports = (nimports < 0 ? 0 : nimports);
+}
+
+//////////////////////////////////////////////////
+
+/* Write the files into dir; return the top file. */
+public File
+generate(File dir)
+    throws IOException
+{
+    int nfiles = nimports + 1;
+    int perchain = depth + 1;
+    int nchains = (nmessages + perchain - 1) / perchain;
+    int perfile = (nchains + nfiles - 1) / nfiles;
+    // Imported files first, so that references can name their chains
+    for(int i=0;i<nimports;i++)
+	writefile(new File(dir,filename(i)),i,perfile,false);
+    File top = new File(dir,filename(nimports));
+    writefile(top,nimports,Math.max(1,nchains - perfile*nimports),true);
+    return top;
+}
+
+static String
+filename(int index)
+{
+    return PREFIX + index + ".proto";
+}
+
+void
+writefile(File f, int index, int nchains, boolean istop)
+    throws IOException
+{
+    PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+    if(istop) {
+	for(int i=0;i<nimports;i++)
+	    w.printf("import \"%s\";%n",filename(i));
+	w.println();
+    }
+    for(int c=0;c<nchains;c++)
+	writechain(w,index,c,istop);
+    w.close();
+}
+
+void
+writechain(PrintWriter w, int index, int chain, boolean istop)
+{
+    String path = "F" + index + "M" + chain;
+    String other = null;
+    if(istop && nimports > 0)
+	other = "F" + (chain % nimports) + "M0";
+    String parent = null;
+    for(int level=0;level<=depth;level++) {
+	indent(w,level);
+	w.printf("message %s {%n",(level == 0 ? path : "N"+level));
+	if(level > 0) {
+	    parent = path;
+	    path = path + ".N" + level;
+	}
+	indent(w,level+1);
+	w.printf("enum Kind { K0 = 0; K1 = 1; K2 = 2; }%n");
+	indent(w,level+1);
+	w.printf("required int32 id = 1;%n");
+	indent(w,level+1);
+	w.printf("optional string label = 2;%n");
+	indent(w,level+1);
+	w.printf("optional %s.Kind kind = 3;%n",path);
+	indent(w,level+1);
+	w.printf("repeated sint64 values = 4 [packed=true];%n");
+	indent(w,level+1);
+	w.printf("optional double scale = 5;%n");
+	if(parent != null) {
+	    indent(w,level+1);
+	    w.printf("optional %s parent = 6;%n",parent);
+	}
+	if(other != null) {
+	    indent(w,level+1);
+	    w.printf("repeated %s other = 7;%n",other);
+	}
+    }
+    for(int level=depth;level>=0;level--) {
+	indent(w,level);
+	w.println("}");
+    }
+    w.println();
+}
+
+static void
+indent(PrintWriter w, int level)
+{
+    for(int i=0;i<level;i++) w.print("    ");
+}
+
+}
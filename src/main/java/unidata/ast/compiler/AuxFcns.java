@@ -158,6 +158,9 @@ Try to locate all nodes that might match using the following rules:
 4. return the complete set of matching types to allow caller to
    decide which is the correct one.
 
+ * ProtobufSemantics uses the equivalent, indexed,
+ * SymbolTable.findtypebyname.
+ *
  * @param typename to search for
  * @param node defining the innermost context for the name
  & @return List<AST.Type> of matching nodes
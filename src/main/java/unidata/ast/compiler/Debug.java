@@ -496,7 +496,7 @@ static void printChildSets(AST.Root root, PrintWriter w)
 }
 
 
-static boolean
+static public boolean
 semerror(AST node, String msg)
     {return semreport(node,msg,true);}
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 1998 - 2010. University Corporation for Atmospheric Research/Unidata
+ * Portions of this software were developed by the Unidata Program at the
+ * University Corporation for Atmospheric Research.
+ *
+ * Access and use of this software shall impose the following obligations
+ * and understandings on the user. The user is granted the right, without
+ * any fee or cost, to use, copy, modify, alter, enhance and distribute
+ * this software, and any derivative works thereof, and its supporting
+ * documentation for any purpose whatsoever, provided that this entire
+ * notice appears in all copies of the software, derivative works and
+ * supporting documentation.  Further, UCAR requests that the user credit
+ * UCAR/Unidata in any publications that result from the use of this
+ * software or in any product that includes this software. The names UCAR
+ * and/or Unidata, however, may not be used in any advertising or publicity
+ * to endorse or promote any products or commercial entity unless specific
+ * written permission is obtained from UCAR/Unidata. The user also
+ * understands that UCAR/Unidata is not obligated to provide the user with
+ * any support, consulting, training or assistance of any kind with regard
+ * to the use, operation and performance of this software nor to provide
+ * the user with any updates, revisions, new versions or "bug fixes."
+ *
+ * THIS SOFTWARE IS PROVIDED BY UCAR/UNIDATA "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL UCAR/UNIDATA BE LIABLE FOR ANY SPECIAL,
+ * INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING
+ * FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+ * NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION
+ * WITH THE ACCESS, USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package unidata.ast.compiler;
+
+import java.io.*;
+import java.util.*;
+
+/**
+Cache of the imported files already parsed by a parser,
+so that a file imported more than once (e.g. a common
+types file imported by many of the files of a schema)
+is read and parsed only once and its AST.File subtree
+is shared by every import of it.
+Entries are keyed by the canonical path of the file, as
+located through AuxFcns.locatefile, together with its
+modification time, so a file that changes is parsed again.
+A cache is reset at the start of each parse, since the
+semantic passes annotate the nodes of a tree in place.
+*/
+
+public class ImportCache
+{
+
+static class Entry
+{
+    long mtime;
+    AST.File file;
+    Entry(long mtime, AST.File file) {this.mtime = mtime; this.file = file;}
+}
+
+//////////////////////////////////////////////////
+// Instance fields
+
+Map<String,Entry> entries = new HashMap<String,Entry>();
+int hits = 0;
+int misses = 0;
+
+//////////////////////////////////////////////////
+// Get/set
+
+public int getHits() {return hits;}
+public int getMisses() {return misses;}
+public int size() {return entries.size();}
+
+public void
+clear()
+{
+    entries.clear();
+    hits = misses = 0;
+}
+
+//////////////////////////////////////////////////
+
+/**
+ * @param f the located import file
+ * @return the cache key for f
+ */
+static public String
+key(File f)
+    throws IOException
+{
+    return f.getCanonicalPath();
+}
+
+/**
+ * @param key from key()
+ * @param mtime modification time of the file
+ * @return the previously parsed file, or null
+ */
+public AST.File
+get(String key, long mtime)
+{
+    Entry e = entries.get(key);
+    if(e == null || e.mtime != mtime) {
+	misses++;
+	return null;
+    }
+    hits++;
+    return e.file;
+}
+
+public void
+put(String key, long mtime, AST.File file)
+{
+    entries.put(key, new Entry(mtime,file));
+}
+
+} // class ImportCache
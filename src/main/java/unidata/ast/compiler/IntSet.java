@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 1998 - 2010. University Corporation for Atmospheric Research/Unidata
+ * Portions of this software were developed by the Unidata Program at the
+ * University Corporation for Atmospheric Research.
+ *
+ * Access and use of this software shall impose the following obligations
+ * and understandings on the user. The user is granted the right, without
+ * any fee or cost, to use, copy, modify, alter, enhance and distribute
+ * this software, and any derivative works thereof, and its supporting
+ * documentation for any purpose whatsoever, provided that this entire
+ * notice appears in all copies of the software, derivative works and
+ * supporting documentation.  Further, UCAR requests that the user credit
+ * UCAR/Unidata in any publications that result from the use of this
+ * software or in any product that includes this software. The names UCAR
+ * and/or Unidata, however, may not be used in any advertising or publicity
+ * to endorse or promote any products or commercial entity unless specific
+ * written permission is obtained from UCAR/Unidata. The user also
+ * understands that UCAR/Unidata is not obligated to provide the user with
+ * any support, consulting, training or assistance of any kind with regard
+ * to the use, operation and performance of this software nor to provide
+ * the user with any updates, revisions, new versions or "bug fixes."
+ *
+ * THIS SOFTWARE IS PROVIDED BY UCAR/UNIDATA "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL UCAR/UNIDATA BE LIABLE FOR ANY SPECIAL,
+ * INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING
+ * FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+ * NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION
+ * WITH THE ACCESS, USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package unidata.ast.compiler;
+
+/**
+Set of ints without boxing, used by the semantic passes
+to check for duplicate field ids and enum values.
+Open addressing with linear probing; any int value,
+including 0 and negative values, may be a member.
+*/
+
+public class IntSet
+{
+
+int[] keys;
+boolean[] used;
+int count = 0;
+int mask;
+
+public IntSet() {this(8);}
+
+public
+IntSet(int expected)
+{
+    int size = 8;
+    while(size < 2*expected) size <<= 1;
+    keys = new int[size];
+    used = new boolean[size];
+    mask = size - 1;
+}
+
+public int size() {return count;}
+
+public boolean
+contains(int key)
+{
+    for(int i=hash(key);used[i];i=(i+1)&mask) {
+        if(keys[i] == key) return true;
+    }
+    return false;
+}
+
+/* Return false if key was already a member */
+public boolean
+add(int key)
+{
+    int i = hash(key);
+    for(;used[i];i=(i+1)&mask) {
+        if(keys[i] == key) return false;
+    }
+    keys[i] = key;
+    used[i] = true;
+    if(++count > (mask+1)/2) grow();
+    return true;
+}
+
+int
+hash(int key)
+{
+    int h = key * 0x9e3779b9;
+    return (h ^ (h >>> 16)) & mask;
+}
+
+void
+grow()
+{
+    int[] oldkeys = keys;
+    boolean[] oldused = used;
+    keys = new int[2*oldkeys.length];
+    used = new boolean[2*oldkeys.length];
+    mask = keys.length - 1;
+    count = 0;
+    for(int i=0;i<oldkeys.length;i++)
+        if(oldused[i]) add(oldkeys[i]);
+}
+
+} // class IntSet
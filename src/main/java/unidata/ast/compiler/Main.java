@@ -273,7 +273,7 @@ public class Main
 +"-I include-file -- specify include file to include in .c output;\n"
 +"                   the file name may optionally be surrounded by <...>.\n"
 +"-L language     -- specify the output language;\n"
-+"                   currently only C is suppported.\n"
++"                   C (the default) and Java (-Ljava) are supported.\n"
 +"-W woption      -- specify various subsidiary debug options:\n"
 +"                   'd' -- turn on general debugging."  
 +"                   'p' -- turn on parsing debug output."  
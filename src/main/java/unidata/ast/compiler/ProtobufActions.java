@@ -56,6 +56,9 @@ static class Constant
 static class ImportInfo
 {
     String filename;
+    String key = null; // see ImportCache
+    long mtime = 0;
+    AST.File file = null; // != null => already parsed
     public ImportInfo(String filename)
 	{this.filename=filename;}
 }
@@ -69,6 +72,7 @@ static class ImportInfo
     AST.Root ast = null; // root node of the AST
     String filename = null;
     List<AST.OptionDef> optiondefs = new ArrayList<AST.OptionDef>();
+    ImportCache importcache = new ImportCache();
 
 //////////////////////////////////////////////////
 // Constructors
@@ -89,6 +93,7 @@ public void
 reset(String filename, Reader stream)
 {
     this.filename = filename;
+    importcache.clear();
     lexstate.reset(state);
     lexstate.setStream(filename,stream);
 }
@@ -99,6 +104,11 @@ reset(String filename, Reader stream)
 
 public AST.Root getAST() {return ast;}
 
+// The scanner, e.g. for driving yylex() directly after reset()
+public ProtobufParser.Lexer getLexer() {return lexstate;}
+
+public ImportCache getImportCache() {return importcache;}
+
 public List<String> getIncludePaths() {return (lexstate==null?null:lexstate.includepaths);}
 
 public void setIncludePaths(List<String> paths)
@@ -160,9 +170,12 @@ Object
 importstmt(Object importinfo0, Object file0)
 {
     ImportInfo info = (ImportInfo)importinfo0;
+    // A file already parsed for an earlier import is shared
+    if(info.file != null) return info.file;
     AST.File file = (AST.File) file0;
     file.setName(info.filename);
     file.setPosition(position());
+    if(info.key != null) importcache.put(info.key,info.mtime,file);
     return file;
 }
 
@@ -190,7 +203,7 @@ filepush(Object info0)
     boolean ok = true;
     String errmsg = null;
     try {
-        ok = lexstate.pushFileStack(info.filename);
+        ok = lexstate.pushFileStack(info);
     } catch (Exception e) {  ok = false; errmsg = e.toString();}
     if(!ok) {
         errmsg = "import file failure: "+info.filename + (errmsg==null?"":errmsg);
@@ -521,6 +521,17 @@ class ProtobufLexer implements Lexer {
     /* Capture and restore to/from file stack */
     public boolean pushFileStack(String importfile)
             throws IOException {
+        return pushFileStack(new ProtobufActions.ImportInfo(importfile));
+    }
+
+    /* If the file has already been parsed (see ImportCache),
+       then info.file is set and the file is not read again;
+       an empty stream stands in for it so that the parser
+       still sees the end of the imported file.
+    */
+    boolean pushFileStack(ProtobufActions.ImportInfo info)
+            throws IOException {
+        String importfile = info.filename;
 	// Check for cyclic imports
 	for(FileEntry e: filestack) {
             if(importfile.equals(e.filename))
@@ -529,7 +540,14 @@ class ProtobufLexer implements Lexer {
         importfile = AuxFcns.locatefile(importfile, includepaths); // use include paths
         File f = new File(importfile);
         if (!f.canRead()) return false;
-        FileReader fr = new FileReader(f);
+        info.key = ImportCache.key(f);
+        info.mtime = f.lastModified();
+        info.file = parsestate.importcache.get(info.key, info.mtime);
+        Reader fr;
+        if (info.file != null)
+            fr = new StringReader("");
+        else
+            fr = new FileReader(f);
         FileEntry entry = new FileEntry();
         entry.filename = importfile;
         entry.stream = stream;
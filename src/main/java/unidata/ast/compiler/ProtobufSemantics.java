@@ -34,6 +34,10 @@ package unidata.ast.compiler;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
 import java.io.*;
 
 import static unidata.ast.compiler.AST.*;
@@ -55,6 +59,14 @@ static boolean ctrl = true;
 AST.Root root = null;
 ASTFactory factory = null;
 String[] argv = null;
+SymbolTable symbols = null; // see buildsymboltable()
+
+// Hashed companions to root.getFileSet() and root.getPackageSet()
+// (see collectglobalnodesets())
+Set<AST.File> filesfound = null;
+Map<String,AST.Package> packagesfound = null;
+// Files already given qualified names (see qualifynames())
+Set<AST.File> filesqualified = null;
 
 //////////////////////////////////////////////////
 
@@ -93,42 +105,49 @@ process(AST.Root root)
     //    Debug.printprops.useuid = true;
 
     if (!rootsetup(root)) return false;
+    stepdone("rootsetup");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\nrootsetup:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!collectglobalnodesets(root, root)) return false;
+    stepdone("collectglobalnodesets");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\ncollectglobalnodesets:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!collectsubtrees(root)) return false;
+    stepdone("collectsubtrees");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\ncollectsubtrees:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!setfilelink(root)) return false;
+    stepdone("setfilelink");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\nsetfilelink:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!setpackagelink(root)) return false;
+    stepdone("setpackagelink");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\nsetpackagelink:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!collectnodesets(root)) return false;
+    stepdone("collectnodesets");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\ncollectnodesets:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!setscopenames(root)) return false;
+    stepdone("setscopenames");
     Debug.printprops.useuid = false;
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\nsetscopenames:");
@@ -136,13 +155,18 @@ process(AST.Root root)
     }
 
     if (!qualifynames(root)) return false;
+    stepdone("qualifynames");
     Debug.printprops.useuid = false;
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\nqualifynames:");
         Debug.printTreeNodes(root, w);
     }
 
+    if (!buildsymboltable(root)) return false;
+    stepdone("buildsymboltable");
+
     if (!checkduplicatenames(root)) return false;
+    stepdone("checkduplicatenames");
     Debug.printprops.useuid = false;
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\ncheckduplicatenames:");
@@ -150,18 +174,23 @@ process(AST.Root root)
     }
 
     if (!dereference(root)) return false;
+    stepdone("dereference");
     if (ctrl && Debug.enabled("trace.semantics.steps")) {
         w.println("\ndereference:");
         Debug.printTreeNodes(root, w);
     }
 
     if (!checkmisc1(root)) return false;
+    stepdone("checkmisc1");
 
     if (!applyExtensions(root)) return false;
+    stepdone("applyExtensions");
 
     if (!defineoptions(root)) return false;
+    stepdone("defineoptions");
 
     if (!mapoptions(root)) return false;
+    stepdone("mapoptions");
 
     Debug.resetprintprops();
     // Print two ways
@@ -223,17 +252,24 @@ rootsetup(AST.Root root)
     root.setPrimitiveTypes(primitives);
 
     // Remove duplicate imported files
+    Map<String,List<AST.File>> filesbyname = new HashMap<String,List<AST.File>>();
+    for (AST ast : root.getChildSet()) {
+        if (ast.getSort() != AST.Sort.FILE) continue;
+        AST.File file = (AST.File) ast;
+        List<AST.File> files = filesbyname.get(file.getName());
+        if (files == null) {
+            files = new ArrayList<AST.File>(1);
+            filesbyname.put(file.getName(), files);
+        }
+        files.add(file);
+    }
     List<AST.File> dups = new ArrayList<AST.File>();
     for (AST ast : root.getChildSet()) {
         if (ast.getSort() != AST.Sort.FILE) continue;
         AST.File file = (AST.File) ast;
-        for (AST ast1 : root.getChildSet()) {
-            if (ast1.getSort() != AST.Sort.FILE) continue;
-            if (ast1 == file) continue;
-            AST.File file1 = (AST.File) ast1;
-            if (file1.getName().equals(file.getName())) {
-                dups.add(file);
-            }
+        for (AST.File file1 : filesbyname.get(file.getName())) {
+            if (file1 == file) continue;
+            dups.add(file);
         }
     }
     for (AST.File file : dups) {
@@ -281,12 +317,24 @@ boolean
 collectglobalnodesets(AST node, AST.Root root)
 {
     if (node == null) return true;
+    if (node == root) {
+        filesfound = new HashSet<AST.File>(root.getFileSet());
+        packagesfound = new HashMap<String,AST.Package>();
+        for (AST.Package p2 : root.getPackageSet()) {
+            if (!packagesfound.containsKey(p2.getName()))
+                packagesfound.put(p2.getName(), p2);
+        }
+    }
+    // A file imported more than once is shared (see ImportCache);
+    // walk it only the first time.
+    if (node.getSort() == AST.Sort.FILE && filesfound.contains(node))
+        return true;
     root.getNodeSet().add(node);
     node.setRoot(root);
     // Collect selected sets of nodes
     switch (node.getSort()) {
     case FILE:
-        if (!root.getFileSet().contains((AST.File) node)) {
+        if (filesfound.add((AST.File) node)) {
             root.getFileSet().add((AST.File) node);
         }
         // Make sure the package is included
@@ -296,16 +344,15 @@ collectglobalnodesets(AST node, AST.Root root)
         AST.Package p = (AST.Package) node;
         boolean match = false;
         // See if this is a duplicate package?
-        for (AST.Package p2 : root.getPackageSet()) {
-            if (p2.getName().equals(p.getName())) {
-                if (Debug.enabled("trace.duplicate.packages")) {
-                    duperror(p, p2, "Duplicate Packages: " + p.getName());
-                }
-                match = true;
-                break;
+        AST.Package p2 = packagesfound.get(p.getName());
+        if (p2 != null) {
+            if (Debug.enabled("trace.duplicate.packages")) {
+                duperror(p, p2, "Duplicate Packages: " + p.getName());
             }
+            match = true;
         }
         if (!match) {
+            packagesfound.put(p.getName(), p);
             root.getPackageSet().add(p);
             // Make sure package node set is defined
             p.setNodeSet(new ArrayList<AST>());
@@ -354,10 +401,12 @@ collectsubtreesr(AST thisnode)
 {
     List<AST> thisset = new ArrayList<AST>();
     for (AST node : thisnode.getChildSet()) {
-        if (node.getSort() != AST.Sort.FILE) {
-            if (!collectsubtreesr(node)) return false;
-        }
         thisset.add(node);
+        // Do not depend on the order in which the files are
+        // visited: an imported file may already have its own
+        // subtree, e.g. when it is shared (see ImportCache).
+        if (node.getSort() == AST.Sort.FILE) continue;
+        if (!collectsubtreesr(node)) return false;
         thisset.addAll(node.getNodeSet());
     }
     thisnode.setNodeSet(thisset);
@@ -628,6 +677,7 @@ boolean
 qualifynames(AST.Root root)
 {
     String qname = "";
+    filesqualified = new HashSet<AST.File>();
     for (AST ast : root.getChildSet()) {
         if (!qualifynamesr(ast, qname)) return false;
     }
@@ -670,6 +720,8 @@ qualifynamesr(AST ast, String qualprefix)
 
     case FILE:
         AST.File file = (AST.File) ast;
+        // A shared import (see ImportCache) need only be done once
+        if (!filesqualified.add(file)) return true;
         if (file.getFilePackage() != null) {
             qname = file.getFilePackage().getScopeName();
         } else {
@@ -701,6 +753,23 @@ qualifynamesr(AST ast, String qualprefix)
     return true;
 }
 
+/**
+ * Pass does the following:
+ * - index all type nodes by qualified name and by name suffix
+ *   so that dereference() and defineoptions() can look
+ *   up type names without scanning the whole tree
+ *
+ * @param root of the tree
+ * @return true if the processing succeeded.
+ */
+
+boolean
+buildsymboltable(AST.Root root)
+{
+    symbols = new SymbolTable(root);
+    return true;
+}
+
 /**
  * Pass does the following:
  * - check for duplicate qualified names
@@ -713,17 +782,39 @@ boolean
 checkduplicatenames(AST.Root root)
 {
     List<AST> allnodes = root.getNodeSet();
+    // Find the qualified names used more than once; the nodes
+    // sharing each such name are kept in node set order.
+    Map<String,AST> first = new HashMap<String,AST>();
+    Map<String,List<AST>> duplicates = new HashMap<String,List<AST>>();
+    for (AST ast : allnodes) {
+        String qname = ast.getQualifiedName();
+        if (qname == null) continue;
+        if (ast.getSort() == AST.Sort.FILE || ast.getSort() == AST.Sort.PACKAGE) continue;
+        AST prev = first.get(qname);
+        if (prev == null) {
+            first.put(qname, ast);
+            continue;
+        }
+        List<AST> group = duplicates.get(qname);
+        if (group == null) {
+            group = new ArrayList<AST>();
+            group.add(prev);
+            duplicates.put(qname, group);
+        }
+        group.add(ast);
+    }
+    if (duplicates.isEmpty()) return true;
+    // Report each node against every other node of the same name
     for (AST ast1 : allnodes) {
         if (ast1.getSort() == AST.Sort.FILE || ast1.getSort() == AST.Sort.PACKAGE) continue;
-        for (AST ast2 : allnodes) {
-            if (ast2 == ast1 || ast2.getQualifiedName() == null) continue;
-            if (ast2.getSort() == AST.Sort.FILE || ast2.getSort() == AST.Sort.PACKAGE) continue;
-            // special case testing
-            if (ast2.getQualifiedName().equals(ast1.getQualifiedName())) {
-                // report and keep going
-                duperror(ast1, ast2, "Duplicate qualified name: "
-                        + ast1.getQualifiedName());
-            }
+        if (ast1.getQualifiedName() == null) continue;
+        List<AST> group = duplicates.get(ast1.getQualifiedName());
+        if (group == null) continue;
+        for (AST ast2 : group) {
+            if (ast2 == ast1) continue;
+            // report and keep going
+            duperror(ast1, ast2, "Duplicate qualified name: "
+                    + ast1.getQualifiedName());
         }
     }
     return true;
@@ -750,7 +841,7 @@ dereference(AST.Root root)
             // deref the msg name
             AST.Extend extender = (AST.Extend) node;
             String msgname = extender.getName();
-            matches = AuxFcns.findtypebyname(msgname, node);
+            matches = symbols.findtypebyname(msgname, node);
             if (matches.size() > 1) {
                 return semerror(node, "Extend msg name is ambiguous: "
                         + msgname);
@@ -776,7 +867,7 @@ dereference(AST.Root root)
             String typename = (String) field.getAnnotation();
             field.setAnnotation(null);
             // Compute absolute name relative to the parent message
-            List<AST.Type> typematches = AuxFcns.findtypebyname(typename, node);
+            List<AST.Type> typematches = symbols.findtypebyname(typename, node);
             if (typematches.size() == 0) {
                 return semerror(node, "Field refers to undefined type: " + typename);
             } else if (typematches.size() > 1) {
@@ -793,7 +884,7 @@ dereference(AST.Root root)
             AST.RPC rpc = (AST.RPC) node;
             String[] names = (String[]) rpc.getAnnotation();
             rpc.setAnnotation(null);
-            typematches = AuxFcns.findtypebyname(names[0], node);
+            typematches = symbols.findtypebyname(names[0], node);
             if (typematches.size() == 0) {
                 return semerror(node, "RPC returntype refers to undefined type: " + names[0]);
             } else if (typematches.size() > 1) {
@@ -803,7 +894,7 @@ dereference(AST.Root root)
             } else {// typematches.size() == 1
                 rpc.setArgType(typematches.get(0));
             }
-            typematches = AuxFcns.findtypebyname(names[1], node);
+            typematches = symbols.findtypebyname(names[1], node);
             if (typematches.size() == 0) {
                 return semerror(node, "RPC returntype refers to undefined type: " + names[1]);
             } else if (typematches.size() > 1) {
@@ -863,30 +954,33 @@ checkmisc1(AST.Root root)
         switch (node.getSort()) {
         case ENUM:
             // check for duplicates
-            for (AST.EnumValue field1 : ((AST.Enum) node).getEnumValues()) {
-                for (AST.EnumValue field2 : ((AST.Enum) node).getEnumValues()) {
-                    if (field1 == field2) continue;
-                    if (field1.getValue() == field2.getValue()) {
-                        duperror(field1, field2,
-                                 String.format("Duplicate enum field numbers: %s=%s and %s=%s",
-                                               field1.getName(), field1.getValue(),
-                                               field2.getName(), field2.getValue()));
-                        break;
-                    }
-                }
+            List<AST.EnumValue> values = ((AST.Enum) node).getEnumValues();
+            int[] valuenos = new int[values.size()];
+            for (int i = 0; i < valuenos.length; i++)
+                valuenos[i] = values.get(i).getValue();
+            int[] samevalue = firstduplicates(values, valuenos);
+            for (int i = 0; samevalue != null && i < samevalue.length; i++) {
+                if (samevalue[i] < 0) continue;
+                AST.EnumValue field1 = values.get(i);
+                AST.EnumValue field2 = values.get(samevalue[i]);
+                duperror(field1, field2,
+                         String.format("Duplicate enum field numbers: %s=%s and %s=%s",
+                                       field1.getName(), field1.getValue(),
+                                       field2.getName(), field2.getValue()));
             }
             break;
         case MESSAGE:
             // check for duplicates
-            for (AST.Field field1 : ((AST.Message) node).getFields()) {
-                for (AST.Field field2 : ((AST.Message) node).getFields()) {
-                    if (field1 == field2) continue;
-                    if (field1.getId() == field2.getId()) {
-                        duperror(field1, field2,
-                                 "Duplicate message field numbers: " + field1.getId());
-                        break;
-                    }
-                }
+            List<AST.Field> fields = ((AST.Message) node).getFields();
+            int[] ids = new int[fields.size()];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = fields.get(i).getId();
+            int[] sameid = firstduplicates(fields, ids);
+            for (int i = 0; sameid != null && i < sameid.length; i++) {
+                if (sameid[i] < 0) continue;
+                AST.Field field1 = fields.get(i);
+                duperror(field1, fields.get(sameid[i]),
+                         "Duplicate message field numbers: " + field1.getId());
             }
             break;
 
@@ -901,9 +995,18 @@ checkmisc1(AST.Root root)
         case EXTEND:
             AST.Extend extend = (AST.Extend) node;
             AST.Message base = extend.getMessage();
+            IntSet baseids = new IntSet(base.getFields().size());
+            Set<String> basenames = new HashSet<String>();
+            for (AST.Field mfield : base.getFields()) {
+                baseids.add(mfield.getId());
+                basenames.add(mfield.getName());
+            }
             for (AST.Field efield : extend.getFields()) {
                 // Check to see if a field of the same name or id
                 // already exists
+                if (!baseids.contains(efield.getId())
+                        && !basenames.contains(efield.getName()))
+                    continue;
                 for (AST.Field mfield : base.getFields()) {
                     if (mfield.getName().equals(efield.getName())
                             || mfield.getId() == efield.getId()) {
@@ -924,6 +1027,48 @@ checkmisc1(AST.Root root)
     return true;
 }
 
+/**
+ * Companion to checkmisc1: for each node, find the first other
+ * node (in list order) that has the same key.
+ *
+ * @param nodes the nodes to check
+ * @param keys  the key (field id or enum value) of each node
+ * @return for each node, the index of the first other node with
+ *         the same key or -1 if there is none; null if all
+ *         the keys are distinct.
+ */
+
+static int[]
+firstduplicates(List<? extends AST> nodes, int[] keys)
+{
+    IntSet seen = new IntSet(keys.length);
+    boolean dups = false;
+    for (int key : keys) {
+        if (!seen.add(key)) {dups = true; break;}
+    }
+    if (!dups) return null;
+    // Group the node indices by key, in list order
+    Map<Integer,List<Integer>> groups = new HashMap<Integer,List<Integer>>();
+    for (int i = 0; i < keys.length; i++) {
+        List<Integer> group = groups.get(keys[i]);
+        if (group == null) {
+            group = new ArrayList<Integer>(2);
+            groups.put(keys[i], group);
+        }
+        group.add(i);
+    }
+    int[] result = new int[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+        result[i] = -1;
+        for (int j : groups.get(keys[i])) {
+            if (nodes.get(j) == nodes.get(i)) continue;
+            result[i] = j;
+            break;
+        }
+    }
+    return result;
+}
+
 
 /**
  * Pass does the following:
@@ -940,7 +1085,7 @@ defineoptions(AST.Root root)
     for (AST.OptionDef od : root.getOptionDefs()) {
         // Deref the type of the optiondef
         String typename = od.typeref;
-        List<AST.Type> typematches = AuxFcns.findtypebyname(typename, root);
+        List<AST.Type> typematches = symbols.findtypebyname(typename, root);
         if (typematches.size() == 0) {
             return semerror(root, "Option has undefined type: " + od.name + ":" + typename);
         }
@@ -46,6 +46,25 @@ abstract public boolean initialize(AST.Root root, String[] argv, ASTFactory fact
 
 abstract public boolean process(AST.Root root);
 
+//////////////////////////////////////////////////
+// Step notification: lets a caller (e.g. a timing harness)
+// observe the completion of each step of process().
+
+public interface StepListener
+{
+    public void stepdone(String step);
+}
+
+StepListener steplistener = null;
+
+public void setStepListener(StepListener listener) {steplistener = listener;}
+
+protected void
+stepdone(String step)
+{
+    if(steplistener != null) steplistener.stepdone(step);
+}
+
 
 } // class Semantics
 
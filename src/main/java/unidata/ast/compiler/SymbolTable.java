@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 1998 - 2010. University Corporation for Atmospheric Research/Unidata
+ * Portions of this software were developed by the Unidata Program at the
+ * University Corporation for Atmospheric Research.
+ *
+ * Access and use of this software shall impose the following obligations
+ * and understandings on the user. The user is granted the right, without
+ * any fee or cost, to use, copy, modify, alter, enhance and distribute
+ * this software, and any derivative works thereof, and its supporting
+ * documentation for any purpose whatsoever, provided that this entire
+ * notice appears in all copies of the software, derivative works and
+ * supporting documentation.  Further, UCAR requests that the user credit
+ * UCAR/Unidata in any publications that result from the use of this
+ * software or in any product that includes this software. The names UCAR
+ * and/or Unidata, however, may not be used in any advertising or publicity
+ * to endorse or promote any products or commercial entity unless specific
+ * written permission is obtained from UCAR/Unidata. The user also
+ * understands that UCAR/Unidata is not obligated to provide the user with
+ * any support, consulting, training or assistance of any kind with regard
+ * to the use, operation and performance of this software nor to provide
+ * the user with any updates, revisions, new versions or "bug fixes."
+ *
+ * THIS SOFTWARE IS PROVIDED BY UCAR/UNIDATA "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL UCAR/UNIDATA BE LIABLE FOR ANY SPECIAL,
+ * INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING
+ * FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+ * NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION
+ * WITH THE ACCESS, USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package unidata.ast.compiler;
+
+import java.util.*;
+
+/**
+Index of the type nodes of a tree, built once the qualified
+names are known (see ProtobufSemantics.qualifynames), so that
+a type reference can be resolved without scanning every node
+of every file.
+Each type is entered under its qualified name and, within the
+partition for its file's package, under every suffix of its
+qualified name that starts after a '.'; all the files with no
+package share one partition.
+findtypebyname() returns the same matches, in the same order
+(by file, then by node), as AuxFcns.findtypebyname, so the
+ambiguity and duplicate diagnostics are unchanged.
+*/
+
+public class SymbolTable
+{
+
+static final List<AST.Type> NOMATCHES = Collections.emptyList();
+
+//////////////////////////////////////////////////
+// Instance fields
+
+AST.Root root = null;
+
+// Qualified name => types
+Map<String,List<AST.Type>> qualified = new HashMap<String,List<AST.Type>>();
+
+// Package name (null => no package) => suffix => types
+Map<String,Map<String,List<AST.Type>>> partitions
+    = new HashMap<String,Map<String,List<AST.Type>>>();
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+SymbolTable(AST.Root root)
+{
+    this.root = root;
+    for(AST.File file: root.getFileSet()) {
+	Map<String,List<AST.Type>> suffixes = getpartition(file,true);
+	for(AST ast: file.getNodeSet()) {
+	    if(!(ast instanceof AST.Type)) continue;
+	    AST.Type type = (AST.Type)ast;
+	    String qname = type.getQualifiedName();
+	    add(qualified,qname,type);
+	    for(int i=qname.indexOf('.');i >= 0;i=qname.indexOf('.',i+1))
+		add(suffixes,qname.substring(i+1),type);
+	}
+    }
+}
+
+static void
+add(Map<String,List<AST.Type>> map, String key, AST.Type type)
+{
+    List<AST.Type> types = map.get(key);
+    if(types == null) {
+	types = new ArrayList<AST.Type>(1);
+	map.put(key,types);
+    }
+    types.add(type);
+}
+
+Map<String,List<AST.Type>>
+getpartition(AST.File file, boolean create)
+{
+    AST.Package p = file.getFilePackage();
+    String key = (p == null ? null : p.getName());
+    Map<String,List<AST.Type>> suffixes = partitions.get(key);
+    if(suffixes == null && create) {
+	suffixes = new HashMap<String,List<AST.Type>>();
+	partitions.put(key,suffixes);
+    }
+    return suffixes;
+}
+
+//////////////////////////////////////////////////
+
+/**
+Given a reference to a type name in the context of a specified node,
+locate all the types that might match: a primitive type, the types
+with a given absolute name, or the types visible from the node's file
+whose qualified name ends with the typename.
+
+ * @param typename to search for
+ * @param node defining the innermost context for the name
+ * @return List<AST.Type> of matching nodes; the caller may not modify it.
+ */
+
+public List<AST.Type>
+findtypebyname(String typename, AST node)
+{
+    // First, see is this a primitive type name
+    for(AST.PrimitiveType pt: root.getPrimitiveTypes())
+        if(typename.equals(pt.getName()))
+	    return Collections.<AST.Type>singletonList(pt);
+
+    // If the typename is absolute, then find it
+    if(typename.charAt(0) == '.')
+	return nonnull(qualified.get(typename));
+
+    // Finally, the types in the same package partition
+    // whose qualified name suffix matches the typename
+    Map<String,List<AST.Type>> suffixes = getpartition(node.getSrcFile(),false);
+    if(suffixes == null) return NOMATCHES;
+    return nonnull(suffixes.get(typename));
+}
+
+static List<AST.Type>
+nonnull(List<AST.Type> types)
+{
+    return (types == null ? NOMATCHES : types);
+}
+
+} // class SymbolTable
@@ -465,6 +465,8 @@ generate_messagestruct(AST.Message msg, Printer printer) throws Exception
 		    cfieldvar(field));
 	}
     }
+    // Serialized size computed by the most recent size pass
+    printer.println("size_t ast_cachedsize;");
     printer.outdent();
     printer.println("};\n");
 
@@ -473,6 +475,9 @@ generate_messagestruct(AST.Message msg, Printer printer) throws Exception
     printer.printf("extern ast_err %s_write(ast_runtime*,%s*);\n",
 		    cfcnname(msg),
 		    msg.getName());
+    printer.printf("extern ast_err %s_write_fields(ast_runtime*,%s*);\n",
+		    cfcnname(msg),
+		    msg.getName());
     printer.printf("extern ast_err %s_read(ast_runtime*,%s**);\n",
 		    cfcnname(msg),
 		    msg.getName());
@@ -557,6 +562,8 @@ generate_messagefunctions(AST.Message msg, Printer printer)
 
     generate_writefunction(msg,printer);
     printer.blankline();
+    generate_writefieldsfunction(msg,printer);
+    printer.blankline();
     generate_readfunction(msg,printer);
     printer.blankline();
     generate_reclaimfunction(msg,printer);
@@ -564,6 +571,17 @@ generate_messagefunctions(AST.Message msg, Printer printer)
     generate_sizefunction(msg,printer);
 }
 
+/*
+Writing is done in two passes: the size pass (<msg>_get_size)
+computes the size of every submessage in the tree once and caches
+it in the ast_cachedsize field of each instance, then the write pass
+(<msg>_write_fields) uses the cached sizes for the length prefixes.
+The cache is refreshed by every call to <msg>_write, so instances
+may be freely modified between writes; only a caller of
+<msg>_write_fields must ensure that a size pass has been made
+since the last modification.
+*/
+
 void
 generate_writefunction(AST.Message msg, Printer printer)
     throws Exception
@@ -573,6 +591,26 @@ generate_writefunction(AST.Message msg, Printer printer)
 		    ctypefor(msg), cmsgvar(msg));
     printer.println(LBRACE);
     printer.indent();
+    if(hasSubmessages(msg)) {
+	printer.println("/* Size pass; caches the size of every submessage */");
+	printer.printf("(void)%s_get_size(rt,%s);\n",
+			cfcnname(msg),cmsgvar(msg));
+    }
+    printer.printf("return %s_write_fields(rt,%s);\n",
+		    cfcnname(msg),cmsgvar(msg));
+    printer.outdent();
+    printer.printf(RBRACE+" /*%s_write*/\n",msg.getName());
+}
+
+void
+generate_writefieldsfunction(AST.Message msg, Printer printer)
+    throws Exception
+{
+    printer.printf("ast_err\n%s_write_fields(ast_runtime* rt, %s* %s)\n",
+		    cfcnname(msg),
+		    ctypefor(msg), cmsgvar(msg));
+    printer.println(LBRACE);
+    printer.indent();
     printer.println("ast_err status = AST_NOERR;");
 
     printer.blankline();
@@ -594,12 +632,12 @@ generate_writefunction(AST.Message msg, Printer printer)
 				field.getId());
 	        generate_check(printer);
 	        /* prefix msg serialization with encoded message size */
-		printer.printf("size = %s_get_size(rt,%s->%s);\n",
-			   cfcnname(field.getType()),cmsgvar(msg),cfieldvar(field));
+		printer.printf("size = %s;\n",
+			   cachedsize(field,cmsgvar(msg)+"->"+cfieldvar(field)+""));
 		printer.println("status = ast_write_size(rt,size);");
 	        generate_check(printer);
-		printer.printf("status = %s_write(rt,%s->%s);\n",
-			       cfcnname(field.getType()),
+		printer.printf("status = %s(rt,%s->%s);\n",
+			       cwritefcn(field),
 			       cmsgvar(msg),cfieldvar(field));
 	    } else throw new Exception("unknown field type");
 	    generate_check(printer);
@@ -617,12 +655,12 @@ generate_writefunction(AST.Message msg, Printer printer)
 				field.getId());
 	        generate_check(printer);
 	        /* prefix msg serialization with encoded message size */
-		printer.printf("size = %s_get_size(rt,%s->%s.value);\n",
-			   cfcnname(field.getType()),cmsgvar(msg),cfieldvar(field));
+		printer.printf("size = %s;\n",
+			   cachedsize(field,cmsgvar(msg)+"->"+cfieldvar(field)+".value"));
 		printer.println("status = ast_write_size(rt,size);");
 	        generate_check(printer);
-		printer.printf("status = %s_write(rt,%s->%s.value);\n",
-			    cfcnname(field.getType()),
+		printer.printf("status = %s(rt,%s->%s.value);\n",
+			    cwritefcn(field),
 			    cmsgvar(msg),cfieldvar(field));
 	    } else throw new Exception("unknown field type");
 	    generate_check(printer);
@@ -658,12 +696,12 @@ generate_writefunction(AST.Message msg, Printer printer)
                                 field.getId());
 	        generate_check(printer);
 	        /* prefix msg serialization with encoded message size */
-		printer.printf("size = %s_get_size(rt,%s->%s.values[i]);\n",
-			   cfcnname(field.getType()),cmsgvar(msg),cfieldvar(field));
+		printer.printf("size = %s;\n",
+			   cachedsize(field,cmsgvar(msg)+"->"+cfieldvar(field)+".values[i]"));
 		printer.println("status = ast_write_size(rt,size);");
 	        generate_check(printer);
-                printer.printf("status = %s_write(rt,%s->%s.values[i]);\n",
-                            cfcnname(field.getType()),
+                printer.printf("status = %s(rt,%s->%s.values[i]);\n",
+                            cwritefcn(field),
                             cmsgvar(msg),cfieldvar(field));
 	        generate_check(printer);
                 printer.outdent();
@@ -681,7 +719,41 @@ generate_writefunction(AST.Message msg, Printer printer)
     generate_return(printer);
     printer.outdent();
     printer.blankline();
-    printer.printf(RBRACE+" /*%s_write*/\n",msg.getName());
+    printer.printf(RBRACE+" /*%s_write_fields*/\n",msg.getName());
+}
+
+// Does this message have any message-typed fields
+static boolean
+hasSubmessages(AST.Message msg)
+{
+    for(AST.Field field: msg.getFields())
+	if(isMessage(field)) return true;
+    return false;
+}
+
+// Messages with the "declare" option have no generated
+// functions and so no cached size; fall back to the
+// user supplied <msg>_get_size and <msg>_write.
+static boolean
+isDeclared(AST.Type asttype)
+{
+    return AuxFcns.getbooleanvalue((String)asttype.optionLookup("declare"));
+}
+
+String
+cachedsize(AST.Field field, String value)
+{
+    if(isDeclared(field.getType()))
+	return String.format("%s_get_size(rt,%s)",cfcnname(field.getType()),value);
+    return value + "->ast_cachedsize";
+}
+
+String
+cwritefcn(AST.Field field)
+{
+    if(isDeclared(field.getType()))
+	return cfcnname(field.getType()) + "_write";
+    return cfcnname(field.getType()) + "_write_fields";
 }
 
 void
@@ -1112,8 +1184,6 @@ void generate_sizefunction(AST.Message msg, Printer printer)
     printer.println("{");
     printer.indent();
     printer.println("size_t totalsize = 0;");
-    if(msg.getFields().size() > 0)
-        printer.println("size_t fieldsize = 0;");
     printer.blankline();
 
     // sum the field sizes; make sure to include the tag if not packed
@@ -1127,76 +1197,44 @@ void generate_sizefunction(AST.Message msg, Printer printer)
 
 	printer.println(LBRACE);
 	printer.indent();
+	printer.println("size_t fieldsize = 0;");
 
 	if(isRequired(field)) {
-	    if(isPrimitive(field) || isEnum(field)) {
-		// Add in the prefix tag size
-		printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
-			(field.isPacked()?ctypesort(field.getType()):"ast_counted"),
-			field.getId());
-		printer.printf("fieldsize += ast_get_size(rt,%s,&%s->%s);\n",
-			       ctypesort(field.getType()),
-			       cmsgvar(msg),cfieldvar(field));
-	    } else if(isMessage(field)) {
-		printer.printf("fieldsize += %s_get_size(rt,%s->%s);\n",
-			    cfcnname(field.getType()),
-			    cmsgvar(msg),cfieldvar(field));
-		// Add in the prefix tag size
-		printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
-			(field.isPacked()?ctypesort(field.getType()):"ast_counted"),
-			field.getId());
-		// Add in the prefix count
-		printer.println("fieldsize += ast_get_size(rt,ast_uint32,&fieldsize);");
-	    } else throw new Exception("unknown field type");
+	    generate_sizefield(msg,field,cmsgvar(msg)+"->"+cfieldvar(field),printer);
 	} else if(isOptional(field)) {
 	    printer.printf("if(%s->%s.defined) {\n",
 			    cmsgvar(msg),cfieldvar(field));
 	    printer.indent();
-	    if(isPrimitive(field) || isEnum(field)) {
-		// Add in the prefix tag size
-		printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
-			(field.isPacked()?ctypesort(field.getType()):"ast_counted"),
-			field.getId());
-		printer.printf("fieldsize += ast_get_size(rt,%s,&%s->%s.value);\n",
-			       ctypesort(field.getType()),
-			       cmsgvar(msg),cfieldvar(field));
-	    } else if(isMessage(field)) {
-		printer.printf("fieldsize += %s_get_size(rt,%s->%s.value);\n",
-			    cfcnname(field.getType()),
-			    cmsgvar(msg),cfieldvar(field));
-		// Add in the prefix count
-		printer.println("fieldsize += ast_get_size(rt,ast_uint32,&fieldsize);");
-		// Add in the prefix tag size
-		printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
-			(field.isPacked()?ctypesort(field.getType()):"ast_counted"),
-			field.getId());
-	    } else throw new Exception("unknown field type");
+	    generate_sizefield(msg,field,cmsgvar(msg)+"->"+cfieldvar(field)+".value",printer);
 	    printer.outdent();
 	    printer.printf("}\n");
-	} else { // field.getCardinality() == AST.Cardinality.REPEATED
+	} else if(field.isPacked() && !isMessage(field)) {
+	    // One tag and one count for the whole field
+	    printer.println("size_t datasize = 0;");
 	    printer.println("int i;");
 	    printer.printf("for(i=0;i<%s->%s.count;i++) {\n",
 			    cmsgvar(msg),cfieldvar(field));
 	    printer.indent();
-	    if(isPrimitive(field) || isEnum(field)) {
-		// Add in the prefix tag size
-		printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
-			(field.isPacked()?ctypesort(field.getType()):"ast_counted"),
-			field.getId());
-		printer.printf("fieldsize += ast_get_size(rt,%s,&%s->%s.values[i]);\n",
-			       ctypesort(field.getType()),
-			       cmsgvar(msg),cfieldvar(field));
-	    } else if(isMessage(field)) {
-		printer.printf("fieldsize += %s_get_size(rt,%s->%s.values[i]);\n",
-			    cfcnname(field.getType()),
+	    printer.printf("datasize += ast_get_size(rt,%s,&%s->%s.values[i]);\n",
+			   ctypesort(field.getType()),
+			   cmsgvar(msg),cfieldvar(field));
+	    printer.outdent();
+	    printer.println(RBRACE);
+	    printer.printf("if(%s->%s.count > 0) {\n",
 			    cmsgvar(msg),cfieldvar(field));
-		// Add in the prefix count
-		printer.println("fieldsize += ast_get_size(rt,ast_uint32,&fieldsize);");
-		// Add in the prefix tag size
-		printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
-			(field.isPacked()?ctypesort(field.getType()):"ast_counted"),
-			field.getId());
-	    } else throw new Exception("unknown field type");
+	    printer.indent();
+	    printer.printf("fieldsize += ast_get_tagsize(rt,ast_counted,%d);\n",
+			    field.getId());
+	    printer.println("fieldsize += ast_get_size(rt,ast_uint32,&datasize);");
+	    printer.println("fieldsize += datasize;");
+	    printer.outdent();
+	    printer.println(RBRACE);
+	} else { // field.getCardinality() == AST.Cardinality.REPEATED
+	    printer.println("int i;");
+	    printer.printf("for(i=0;i<%s->%s.count;i++) {\n",
+			    cmsgvar(msg),cfieldvar(field));
+	    printer.indent();
+	    generate_sizefield(msg,field,cmsgvar(msg)+"->"+cfieldvar(field)+".values[i]",printer);
 	    printer.outdent();
 	    printer.println(RBRACE);
 	}
@@ -1205,6 +1243,7 @@ void generate_sizefunction(AST.Message msg, Printer printer)
 	printer.println(RBRACE);
     }
 
+    printer.printf("%s->ast_cachedsize = totalsize;\n",cmsgvar(msg));
     printer.println("return totalsize;");
     printer.outdent();
     printer.blankline();
@@ -1212,6 +1251,34 @@ void generate_sizefunction(AST.Message msg, Printer printer)
     printer.blankline();
 }
 
+/* Add the size of one (non-packed) instance of a field, including its tag */
+void
+generate_sizefield(AST.Message msg, AST.Field field, String value, Printer printer)
+    throws Exception
+{
+    if(isPrimitive(field) || isEnum(field)) {
+	// Add in the prefix tag size
+	printer.printf("fieldsize += ast_get_tagsize(rt,%s,%d);\n",
+		       ctypesort(field.getType()),field.getId());
+	printer.printf("fieldsize += ast_get_size(rt,%s,&%s);\n",
+		       ctypesort(field.getType()),value);
+    } else if(isMessage(field)) {
+	// The submessage get_size also refreshes its cached size
+	printer.println(LBRACE);
+	printer.indent();
+	printer.printf("size_t size = %s_get_size(rt,%s);\n",
+		       cfcnname(field.getType()),value);
+	// Add in the prefix tag size
+	printer.printf("fieldsize += ast_get_tagsize(rt,ast_counted,%d);\n",
+		       field.getId());
+	// Add in the prefix count
+	printer.println("fieldsize += ast_get_size(rt,ast_uint32,&size);");
+	printer.println("fieldsize += size;");
+	printer.outdent();
+	printer.println(RBRACE);
+    } else throw new Exception("unknown field type");
+}
+
 
 //////////////////////////////////////////////////
 
@@ -1379,13 +1446,23 @@ generate_return(Printer printer) throws IOException
 
 // Generate a flattener
 static void
-flatten(AST root, Class target, List<AST> list) 
+flatten(AST root, Class<?> target, List<AST> list) 
+{
+    flatten(root,target,list,new HashSet<AST>());
+}
+
+// A file imported more than once is shared (see ImportCache),
+// so only flatten it the first time it is seen.
+static void
+flatten(AST root, Class<?> target, List<AST> list, Set<AST> files)
 {
+    if(root.getChildSet() == null) return;
     for(AST node: root.getChildSet()) {
-        if(node.getClass() == target) {
+        if(node.getSort() == AST.Sort.FILE && !files.add(node))
+	    continue;
+        if(target.isInstance(node))
 	    list.add(node);
-	    flatten(node,target,list);	 
-   	}
+	flatten(node,target,list,files);
     }
 }
 
@@ -0,0 +1,1113 @@
+/*
+ * Copyright (c) 1998 - 2010. University Corporation for Atmospheric Research/Unidata
+ * Portions of this software were developed by the Unidata Program at the
+ * University Corporation for Atmospheric Research.
+ *
+ * Access and use of this software shall impose the following obligations
+ * and understandings on the user. The user is granted the right, without
+ * any fee or cost, to use, copy, modify, alter, enhance and distribute
+ * this software, and any derivative works thereof, and its supporting
+ * documentation for any purpose whatsoever, provided that this entire
+ * notice appears in all copies of the software, derivative works and
+ * supporting documentation.  Further, UCAR requests that the user credit
+ * UCAR/Unidata in any publications that result from the use of this
+ * software or in any product that includes this software. The names UCAR
+ * and/or Unidata, however, may not be used in any advertising or publicity
+ * to endorse or promote any products or commercial entity unless specific
+ * written permission is obtained from UCAR/Unidata. The user also
+ * understands that UCAR/Unidata is not obligated to provide the user with
+ * any support, consulting, training or assistance of any kind with regard
+ * to the use, operation and performance of this software nor to provide
+ * the user with any updates, revisions, new versions or "bug fixes."
+ *
+ * THIS SOFTWARE IS PROVIDED BY UCAR/UNIDATA "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL UCAR/UNIDATA BE LIABLE FOR ANY SPECIAL,
+ * INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING
+ * FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+ * NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION
+ * WITH THE ACCESS, USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+/*
+This generator generates one file per proto file,
+namely <protofile>.java (or <java_class>.java).
+The file contains a single top-level class; every message
+becomes a static public nested class extending
+unidata.ast.runtime.AbstractMessage and every enum
+becomes a nested Java enum, both nested to mirror
+the nesting in the proto file.
+Thus, if a user has imports, then those import files
+must be separately compiled.
+Exception: if the option "compile=..." references a file,
+then its declarations are generated also.
+*/
+
+package unidata.ast.compiler.generators.java;
+
+import unidata.ast.compiler.*;
+import gnu.getopt.Getopt;
+
+import java.util.*;
+import java.io.*;
+
+public class JavaGenerator extends unidata.ast.compiler.Generator
+{
+
+//////////////////////////////////////////////////
+
+static final String LANGUAGE = "Java";
+
+//////////////////////////////////////////////////
+
+static final String DFALTDIR = ".";
+
+static final String LBRACE = "{";
+static final String RBRACE = "}";
+
+/* Must be kept sorted for binary search */
+static final String[] JavaKeywords = new String[] {
+"abstract", "assert", "boolean", "break", "byte",
+"cachedsize", "case", "catch", "char", "class", "const",
+"continue", "default", "do", "double", "else",
+"enum", "extends", "false", "final", "finally",
+"float", "for", "goto", "if", "implements",
+"import", "instanceof", "int", "interface", "long",
+"native", "new", "null", "package", "private",
+"protected", "public", "return", "rt", "short",
+"static", "strictfp", "super", "switch", "synchronized",
+"this", "throw", "throws", "transient", "true",
+"try", "void", "volatile", "while"
+};
+// Note: "rt" and "cachedsize" are not keywords, but they would
+// hide the fields of the same name in AbstractMessage
+
+/* Prefix for generated locals, parameters and bookkeeping fields;
+   JavaSemantics rejects field and enum value names that start
+   with it, so the generated names cannot collide with them.
+*/
+static final String GENPREFIX = "ast_";
+
+/* Suffix added to the default top-level class name
+   when the file declares a type of the same name
+*/
+static final String OUTERSUFFIX = "OuterClass";
+
+//////////////////////////////////////////////////
+// Define the per-node extra info; grouped here into a single class.
+
+static public class Annotation
+{
+    String fileprefix = null;
+    String filebase = null;
+    String javapackage = null;
+    String javaclass = null; // top-level class for a file
+    int hasbit = -1; // optional fields: index of its has-bit
+}
+
+//////////////////////////////////////////////////
+// Misc. static functions
+
+static boolean isPrimitive(AST.Field field)
+{
+    return (field.getType().getSort() == AST.Sort.PRIMITIVETYPE);
+}
+
+static AST.PrimitiveSort getPrimitiveSort(AST.Field field)
+{
+    if(!isPrimitive(field)) return null;
+    return ((AST.PrimitiveType)(field.getType())).getPrimitiveSort();
+}
+
+static boolean isEnum(AST.Field field)
+{
+    return (field.getType().getSort() == AST.Sort.ENUM);
+}
+
+static boolean isMessage(AST.Field field)
+{
+    return (field.getType().getSort() == AST.Sort.MESSAGE);
+}
+
+static boolean isRequired(AST.Field field)
+{
+    return (field.getCardinality() == AST.Cardinality.REQUIRED);
+}
+
+static boolean isOptional(AST.Field field)
+{
+    return (field.getCardinality() == AST.Cardinality.OPTIONAL);
+}
+
+static boolean isRepeated(AST.Field field)
+{
+    return (field.getCardinality() == AST.Cardinality.REPEATED);
+}
+
+/* Can the field be sent in packed form */
+static boolean isPackable(AST.Field field)
+{
+    if(isEnum(field)) return true;
+    if(!isPrimitive(field)) return false;
+    switch (getPrimitiveSort(field)) {
+    case STRING: case BYTES: return false;
+    default: break;
+    }
+    return true;
+}
+
+/* Does this message have any message-typed fields */
+static boolean hasSubmessages(AST.Message msg)
+{
+    for(AST.Field field: msg.getFields())
+	if(isMessage(field)) return true;
+    return false;
+}
+
+/* Does this message have any enum-typed fields */
+static boolean hasEnums(AST.Message msg)
+{
+    for(AST.Field field: msg.getFields())
+	if(isEnum(field)) return true;
+    return false;
+}
+
+/* Optional fields whose presence cannot be signalled with null */
+static boolean hasHasbit(AST.Field field)
+{
+    return isOptional(field) && !isMessage(field);
+}
+
+//////////////////////////////////////////////////
+// Instance variables
+
+String outputdir = null;
+
+AST.File topfile = null;
+
+//////////////////////////////////////////////////
+// Constructor
+
+public
+JavaGenerator()
+{
+}
+
+//////////////////////////////////////////////////
+// Command line processing
+
+List<String>
+processcommandline(String[] argv)
+{
+    int c;
+    List<String> arglist = new ArrayList<String>();
+    Getopt g = new Getopt(LANGUAGE+"Generator",argv,"-:o",null);
+    while ((c = g.getopt()) != -1) {
+	switch (c) {
+	case 1: // intermixed non-option
+	    arglist.add(g.getOptarg());
+	    break;
+	case ':':
+	    System.err.println("Command line option requires argument "+g.getOptopt());
+	    System.exit(1);
+	    break;
+	case '?':
+	    System.err.println("Illegal cmd line option: "+g.getOptopt());
+	    System.exit(1);
+	    break;
+	// True options start here
+	case 'o':
+	    String dir = g.getOptarg();
+	    if(dir != null && dir.length() > 0) outputdir = dir;
+	    break;
+	default:
+	    System.err.println("Unexpected getopt tag: "+c);
+	    System.exit(1);
+	}
+    }
+    return arglist;
+}
+
+//////////////////////////////////////////////////
+
+/*
+- compute which files will generate code
+- compute the package and top-level class name for every file
+- compute the has-bit assignments for optional fields
+- generate the top-level class containing, for each code file,
+   - the enum declarations
+   - the message classes with their write/read/getSize methods
+*/
+
+public boolean
+generate(AST.Root root, String[] argv) throws Exception
+{
+    List<String> arglist = processcommandline(argv);
+    List<AST.File> codefiles = new ArrayList<AST.File>();
+    topfile = root.getTopFile();
+
+    // Assign annotation objects
+    for(AST ast: root.getNodeSet()) {
+	switch (ast.getSort()) {
+	case PACKAGE: case FILE: case MESSAGE: case ENUM: case FIELD:
+	    Annotation a = new Annotation();
+	    ast.setAnnotation(a);
+	    break;
+	default: break;
+	}
+    }
+
+    // Find files that will contribute code
+    // Topfile is always treated as compiled
+    codefiles.add(topfile);
+    String tmp = (String)topfile.optionLookup("compile");
+    if(tmp != null && tmp.length() > 0) {
+        String[] compilefiles = tmp.split(",");
+        for(String cfile: compilefiles) {
+	    // Locate the file
+            for(AST.File file: root.getFileSet()) {
+	        if(cfile.equals(file.getName())) {
+		    if(!codefiles.contains(file))
+		        codefiles.add(file);
+		}
+	    }
+	}
+    }
+
+    // Compute the package and class name for each file;
+    // imported files are assumed to have been generated
+    // with their own options.
+    for(AST.File f: root.getFileSet()) {
+	Annotation a = (Annotation)f.getAnnotation();
+	String jclass = (String)f.optionLookup("java_class");
+	if(jclass == null || jclass.length() == 0) {
+	    jclass = converttojavaname(AuxFcns.getBaseName(f.getName()));
+	    // A nested type may not have the name of its outer class
+	    if(JavaSemantics.declarestype(f,jclass))
+		jclass = jclass + OUTERSUFFIX;
+	}
+	a.javaclass = jclass;
+	String jpackage = (String)f.optionLookup("java_package");
+	if(jpackage == null || jpackage.length() == 0)
+	    jpackage = (f.getFilePackage() == null ? null
+			: f.getFilePackage().getName());
+	a.javapackage = jpackage;
+    }
+
+    // Compute the output file name
+    Annotation a = (Annotation)topfile.getAnnotation();
+    String prefix = AuxFcns.getFilePrefix(topfile.getName());
+    // outputdir overrides any prefix
+    if(outputdir != null) prefix = outputdir;
+    if(prefix.length() == 0) prefix = DFALTDIR;
+    a.filebase = a.javaclass;
+    a.fileprefix = prefix;
+
+    // Assign the has-bits for each message
+    for(AST ast: root.getNodeSet()) {
+	if(ast.getSort() != AST.Sort.MESSAGE) continue;
+	int nbits = 0;
+	for(AST.Field field: ((AST.Message)ast).getFields()) {
+	    if(hasHasbit(field))
+		((Annotation)field.getAnnotation()).hasbit = nbits++;
+	}
+    }
+
+    // Generate the <filebase>.java content
+    Printer printer = null;
+    FileWriter wfile = null;
+    File file = new File(a.fileprefix + "/" + a.filebase + ".java");
+    try {
+	wfile = new FileWriter(file);
+	printer = new Printer(wfile);
+	generate_java(topfile,codefiles,printer);
+	printer.close(); wfile.close();
+    } catch (Exception e) {
+	System.err.println("Generation Failure: "+file+":"+e);
+	e.printStackTrace();
+	return false;
+    }
+    return true;
+} // generate()
+
+void
+generate_java(AST.File topfile, List<AST.File> files, Printer printer)
+	throws Exception
+{
+    Annotation a = (Annotation)topfile.getAnnotation();
+    printer.printf("/* Generated from %s; do not edit */\n",topfile.getName());
+    printer.blankline();
+    if(a.javapackage != null) {
+	printer.printf("package %s;\n",a.javapackage);
+	printer.blankline();
+    }
+    printer.println("import unidata.ast.runtime.*;");
+    printer.println("import unidata.ast.runtime.ASTRuntime.Sort;");
+    printer.println("import unidata.ast.runtime.ASTRuntime.Wiretype;");
+    printer.blankline();
+    printer.println("import java.io.IOException;");
+    printer.blankline();
+    printer.printf("public class %s\n",a.javaclass);
+    printer.println(LBRACE);
+
+    for(AST.File f: files) {
+	// Generate the top level enum definitions
+	for(AST.Enum e: f.getEnums())
+	    generate_enum(e,printer);
+	// Generate the top level message classes
+	for(AST.Message msg: f.getMessages())
+	    generate_messageclass(msg,printer);
+    }
+
+    printer.blankline();
+    printer.printf("} /*class %s*/\n",a.javaclass);
+}
+
+void
+generate_enum(AST.Enum e, Printer printer) throws Exception
+{
+    String ename = converttojavaname(e.getName());
+    printer.blankline();
+    printer.printf("static public enum %s\n",ename);
+    printer.println(LBRACE);
+    printer.indent();
+    List<AST.EnumValue> values = e.getEnumValues();
+    int nvalues = values.size();
+    for(int i=0;i<nvalues;i++) {
+	AST.EnumValue eval = values.get(i);
+	printer.printf("%s(%d)%s\n",
+	    converttojavaname(eval.getName()),
+	    eval.getValue(),
+	    (i == (nvalues - 1)?";":","));
+    }
+    printer.blankline();
+    printer.printf("private final int %svalue;\n",GENPREFIX);
+    printer.printf("%s(int %svalue) {this.%svalue = %svalue;}\n",
+		    ename,GENPREFIX,GENPREFIX,GENPREFIX);
+    printer.printf("public int getValue() {return %svalue;}\n",GENPREFIX);
+    printer.blankline();
+    printer.println("/* The constant for a value, or null if there is none */");
+    printer.printf("static public %s toEnum(int %svalue)\n",ename,GENPREFIX);
+    printer.println(LBRACE);
+    printer.indent();
+    printer.printf("switch (%svalue) {\n",GENPREFIX);
+    Set<Integer> seen = new HashSet<Integer>(); // aliases map to first
+    for(AST.EnumValue eval: values) {
+	if(!seen.add(eval.getValue())) continue;
+	printer.printf("case %d: return %s;\n",
+			eval.getValue(),converttojavaname(eval.getName()));
+    }
+    printer.println("default: break;");
+    printer.println(RBRACE);
+    printer.println("return null;");
+    printer.outdent();
+    printer.println(RBRACE);
+    printer.outdent();
+    printer.printf("} /*enum %s*/\n",ename);
+}
+
+void
+generate_messageclass(AST.Message msg, Printer printer) throws Exception
+{
+    // If the "declare" option is set, then do nothing
+    if(AuxFcns.getbooleanvalue((String)msg.optionLookup("declare")))
+	return;
+
+    String mname = converttojavaname(msg.getName());
+    printer.blankline();
+    printer.printf("static public class %s extends AbstractMessage\n",mname);
+    printer.println(LBRACE);
+    printer.indent();
+
+    // Nested declarations
+    for(AST.Enum e: msg.getEnums())
+	generate_enum(e,printer);
+    for(AST.Message sub: msg.getMessages())
+	generate_messageclass(sub,printer);
+
+    // Generate the fields
+    printer.blankline();
+    for(AST.Field field: msg.getFields()) {
+	String init = defaultfor(field);
+	printer.printf("public %s %s%s;\n",
+			javatypefor(field),
+			javafieldvar(field),
+			(init == null ? "" : " = "+init));
+    }
+    int nbits = countHasbits(msg);
+    for(int i=0;i<nbits;i+=32)
+	printer.printf("int %shasbits%d = 0;\n",GENPREFIX,i/32);
+
+    // Constructors
+    printer.blankline();
+    printer.printf("public %s() {super();}\n",mname);
+    printer.printf("public %s(ASTRuntime rt) {super(rt);}\n",mname);
+
+    generate_accessors(msg,printer);
+    printer.blankline();
+    generate_clearfunction(msg,printer);
+    printer.blankline();
+    generate_writefunction(msg,printer);
+    printer.blankline();
+    generate_readfunction(msg,printer);
+    printer.blankline();
+    generate_sizefunction(msg,printer);
+
+    printer.outdent();
+    printer.printf("} /*class %s*/\n",mname);
+}
+
+int
+countHasbits(AST.Message msg)
+{
+    int nbits = 0;
+    for(AST.Field field: msg.getFields())
+	if(hasHasbit(field)) nbits++;
+    return nbits;
+}
+
+void
+generate_accessors(AST.Message msg, Printer printer)
+    throws Exception
+{
+    // Optional fields get has_x(), set_x() and clear_x()
+    for(AST.Field field: msg.getFields()) {
+	if(!isOptional(field)) continue;
+	String name = javafieldvar(field);
+	String init = defaultfor(field);
+	printer.blankline();
+	if(isMessage(field)) {
+	    printer.printf("public boolean has_%s() {return %s != null;}\n",
+			    field.getName(),name);
+	    printer.printf("public void set_%s(%s %svalue) {%s = %svalue;}\n",
+			    field.getName(),javatypefor(field),GENPREFIX,
+			    name,GENPREFIX);
+	    printer.printf("public void clear_%s() {%s = null;}\n",
+			    field.getName(),name);
+	} else {
+	    printer.printf("public boolean has_%s() {return %s;}\n",
+			    field.getName(),hasbittest(field));
+	    printer.printf("public void set_%s(%s %svalue) {%s = %svalue; %s;}\n",
+			    field.getName(),javatypefor(field),GENPREFIX,
+			    name,GENPREFIX,hasbitset(field));
+	    printer.printf("public void clear_%s() {%s = %s; %s;}\n",
+			    field.getName(),name,
+			    (init == null ? zerofor(field) : init),
+			    hasbitclear(field));
+	}
+    }
+}
+
+void
+generate_clearfunction(AST.Message msg, Printer printer)
+    throws Exception
+{
+    printer.println("/* Reset every field to its default */");
+    printer.println("public void");
+    printer.println("clear()");
+    printer.println(LBRACE);
+    printer.indent();
+    for(AST.Field field: msg.getFields()) {
+	String init = defaultfor(field);
+	printer.printf("%s = %s;\n",javafieldvar(field),
+			(init == null ? zerofor(field) : init));
+    }
+    int nbits = countHasbits(msg);
+    for(int i=0;i<nbits;i+=32)
+	printer.printf("%shasbits%d = 0;\n",GENPREFIX,i/32);
+    if(hasEnums(msg))
+	printer.println("clear_unknown_enums();");
+    printer.outdent();
+    printer.println(RBRACE);
+}
+
+void
+generate_writefunction(AST.Message msg, Printer printer)
+    throws Exception
+{
+    // Without submessages there are no cached sizes to compute,
+    // so skip the size pass done by AbstractMessage.write()
+    if(!hasSubmessages(msg)) {
+	printer.println("public void write() throws IOException {write_fields();}");
+	printer.blankline();
+    }
+    printer.println("protected void");
+    printer.println("write_fields() throws IOException");
+    printer.println(LBRACE);
+    printer.indent();
+    for(AST.Field field: msg.getFields()) {
+	String name = javafieldvar(field);
+	if(isRequired(field)) {
+	    generate_writefield(field,name,printer);
+	} else if(isOptional(field)) {
+	    printer.printf("if(%s) {\n",
+		(isMessage(field) ? name+" != null" : hasbittest(field)));
+	    printer.indent();
+	    generate_writefield(field,name,printer);
+	    printer.outdent();
+	    printer.println(RBRACE);
+	} else if(field.isPacked() && isPackable(field)) {
+	    printer.printf("if(%s != null && %s.length > 0) {\n",name,name);
+	    printer.indent();
+	    printer.printf("write_tag(Sort.Ast_packed,%d);\n",field.getId());
+	    if(isEnum(field)) {
+		generate_enumvalues(field,printer);
+		printer.printf("write_primitive_packed(Sort.Ast_enum,%s);\n",
+				valuesvar(field));
+	    } else {
+		printer.printf("write_primitive_packed(%s,%s);\n",
+				javasort(field.getType()),name);
+	    }
+	    printer.outdent();
+	    printer.println(RBRACE);
+	} else { // repeated, not packed
+	    printer.printf("if(%s != null) {\n",name);
+	    printer.indent();
+	    printer.printf("for(int %si=0;%si<%s.length;%si++) {\n",
+			    GENPREFIX,GENPREFIX,name,GENPREFIX);
+	    printer.indent();
+	    generate_writefield(field,name+"["+GENPREFIX+"i]",printer);
+	    printer.outdent();
+	    printer.println(RBRACE);
+	    printer.outdent();
+	    printer.println(RBRACE);
+	}
+    }
+    // Enum values that were read but not recognized
+    if(hasEnums(msg))
+	printer.println("write_unknown_enums();");
+    printer.outdent();
+    printer.println(RBRACE);
+}
+
+/* Write a single (non-packed) instance of a field */
+void
+generate_writefield(AST.Field field, String value, Printer printer)
+    throws Exception
+{
+    if(isMessage(field)) {
+	printer.printf("write_message(%d,%s);\n",field.getId(),value);
+    } else if(isEnum(field)) {
+	printer.printf("write_tag(Sort.Ast_enum,%d);\n",field.getId());
+	printer.printf("write_primitive(Sort.Ast_enum,%s.getValue());\n",value);
+    } else {
+	String sort = javasort(field.getType());
+	printer.printf("write_tag(%s,%d);\n",sort,field.getId());
+	printer.printf("write_primitive(%s,%s);\n",sort,value);
+    }
+}
+
+void
+generate_readfunction(AST.Message msg, Printer printer)
+    throws Exception
+{
+    String mname = converttojavaname(msg.getName());
+    printer.printf("public %s\n",mname);
+    printer.println("read() throws IOException");
+    printer.println(LBRACE);
+    printer.indent();
+    printer.println("clear();");
+    printer.println("cachedsize = -1;");
+    printer.println("read_fields();");
+    printer.println("return this;");
+    printer.outdent();
+    printer.println(RBRACE);
+    printer.blankline();
+    // read_fields() only assigns the fields present in the input,
+    // so it can also be used to decode a subset of the fields
+    printer.println("protected void");
+    printer.println("read_fields() throws IOException");
+    printer.println(LBRACE);
+    printer.indent();
+    printer.printf("int[] %swiretype = new int[1];\n",GENPREFIX);
+    printer.printf("int[] %sfieldno = new int[1];\n",GENPREFIX);
+    if(hasEnums(msg))
+	printer.printf("int %senum = 0;\n",GENPREFIX);
+    // Repeated fields are accumulated and trimmed at the end
+    for(AST.Field field: msg.getFields()) {
+	if(!isRepeated(field)) continue;
+	printer.printf("%s %s = null;\n",builderfor(field),listvar(field));
+    }
+    printer.printf("while(read_tag(%swiretype,%sfieldno)) {\n",GENPREFIX,GENPREFIX);
+    printer.indent();
+    printer.printf("switch (%sfieldno[0]) {\n",GENPREFIX);
+    for(AST.Field field: msg.getFields()) {
+	String name = javafieldvar(field);
+	printer.printf("case %d:\n",field.getId());
+	printer.indent();
+	if(isEnum(field)) {
+	    generate_readenum(field,printer);
+	} else if(!isRepeated(field)) {
+	    printer.printf("%s = %s;\n",name,readvaluefor(field));
+	    if(hasHasbit(field))
+		printer.printf("%s;\n",hasbitset(field));
+	} else if(isPackable(field)) {
+	    // Accept either packed or unpacked encodings
+	    String list = listvar(field);
+	    printer.printf("if(%swiretype[0] == Wiretype.Ast_counted) {\n",GENPREFIX);
+	    printer.indent();
+	    String sort = javasort(field.getType());
+	    printer.printf("%s = repeat_extend(%s,%s(%s),%s);\n",
+			    list,sort,packedreaderfor(field),sort,list);
+	    printer.outdent();
+	    printer.println("} else");
+	    printer.indent();
+	    printer.printf("%s = repeat_append(%s,%s,%s);\n",
+			    list,javasort(field.getType()),
+			    readvaluefor(field),list);
+	    printer.outdent();
+	} else {
+	    String list = listvar(field);
+	    printer.printf("%s = repeat_append(%s,%s,%s);\n",
+			    list,javasort(field.getType()),
+			    readvaluefor(field),list);
+	}
+	printer.println("break;");
+	printer.outdent();
+    }
+    printer.println("default:");
+    printer.indent();
+    printer.printf("skip_field(%swiretype[0],%sfieldno[0]);\n",GENPREFIX,GENPREFIX);
+    printer.println("break;");
+    printer.outdent();
+    printer.println(RBRACE);
+    printer.outdent();
+    printer.println(RBRACE);
+    for(AST.Field field: msg.getFields()) {
+	if(!isRepeated(field)) continue;
+	String list = listvar(field);
+	printer.printf("if(%s != null)\n",list);
+	printer.indent();
+	if(isPrimitive(field) && isPackable(field)) {
+	    printer.printf("%s = repeat_finish(%s);\n",javafieldvar(field),list);
+	} else {
+	    printer.printf("%s = repeat_finish(%s,%s);\n",
+			    javafieldvar(field),list,
+			    newarrayfor(field,list+".size()"));
+	}
+	printer.outdent();
+    }
+    printer.outdent();
+    printer.println(RBRACE);
+}
+
+/* Read an enum field, packed or not; a value that has no constant
+   in the Java enum is kept by keep_unknown_enum(), rather than
+   being stored as null, so that it is written back unchanged.
+*/
+void
+generate_readenum(AST.Field field, Printer printer)
+    throws Exception
+{
+    String value = GENPREFIX + "enum";
+    if(isRepeated(field)) {
+	printer.printf("if(%swiretype[0] == Wiretype.Ast_counted) {\n",GENPREFIX);
+	printer.indent();
+	printer.printf("for(int %s: read_primitive_packed_int(Sort.Ast_enum)) {\n",
+			GENPREFIX + "packed");
+	printer.indent();
+	generate_storeenum(field,GENPREFIX + "packed",printer);
+	printer.outdent();
+	printer.println(RBRACE);
+	printer.outdent();
+	printer.println("} else {");
+	printer.indent();
+    }
+    printer.printf("%s = read_primitive_int(Sort.Ast_enum);\n",value);
+    generate_storeenum(field,value,printer);
+    if(isRepeated(field)) {
+	printer.outdent();
+	printer.println(RBRACE);
+    }
+}
+
+void
+generate_storeenum(AST.Field field, String value, Printer printer)
+    throws Exception
+{
+    String constant = String.format("%s.toEnum(%s)",
+				    javatypename(field.getType()),value);
+    printer.printf("if(%s == null)\n",constant);
+    printer.indent();
+    printer.printf("keep_unknown_enum(%d,%s);\n",field.getId(),value);
+    printer.outdent();
+    printer.println("else {");
+    printer.indent();
+    if(isRepeated(field)) {
+	String list = listvar(field);
+	printer.printf("%s = repeat_append(Sort.Ast_enum,%s,%s);\n",
+			list,constant,list);
+    } else {
+	printer.printf("%s = %s;\n",javafieldvar(field),constant);
+	if(hasHasbit(field))
+	    printer.printf("%s;\n",hasbitset(field));
+    }
+    printer.outdent();
+    printer.println(RBRACE);
+}
+
+void
+generate_sizefunction(AST.Message msg, Printer printer)
+    throws Exception
+{
+    printer.println("public int");
+    printer.println("getSize() throws IOException");
+    printer.println(LBRACE);
+    printer.indent();
+    printer.printf("int %ssize = 0;\n",GENPREFIX);
+    for(AST.Field field: msg.getFields()) {
+	String name = javafieldvar(field);
+	if(isRequired(field)) {
+	    generate_sizefield(field,name,printer);
+	} else if(isOptional(field)) {
+	    printer.printf("if(%s)\n",
+		(isMessage(field) ? name+" != null" : hasbittest(field)));
+	    printer.indent();
+	    generate_sizefield(field,name,printer);
+	    printer.outdent();
+	} else if(field.isPacked() && isPackable(field)) {
+	    printer.printf("if(%s != null && %s.length > 0) {\n",name,name);
+	    printer.indent();
+	    String packed = name;
+	    if(isEnum(field)) {
+		generate_enumvalues(field,printer);
+		packed = valuesvar(field);
+	    }
+	    printer.printf("%ssize += getTagSize(Sort.Ast_packed,%d)\n",
+			    GENPREFIX,field.getId());
+	    printer.printf("            + getMessageSize(getSizePacked(%s,%s));\n",
+			    javasort(field.getType()),packed);
+	    printer.outdent();
+	    printer.println(RBRACE);
+	} else { // repeated, not packed
+	    printer.printf("if(%s != null)\n",name);
+	    printer.indent();
+	    printer.printf("for(int %si=0;%si<%s.length;%si++)\n",
+			    GENPREFIX,GENPREFIX,name,GENPREFIX);
+	    printer.indent();
+	    generate_sizefield(field,name+"["+GENPREFIX+"i]",printer);
+	    printer.outdent();
+	    printer.outdent();
+	}
+    }
+    if(hasEnums(msg))
+	printer.printf("%ssize += getUnknownEnumsSize();\n",GENPREFIX);
+    printer.printf("cachedsize = %ssize;\n",GENPREFIX);
+    printer.printf("return %ssize;\n",GENPREFIX);
+    printer.outdent();
+    printer.println(RBRACE);
+}
+
+/* Compute the size of a single (non-packed) instance of a field */
+void
+generate_sizefield(AST.Field field, String value, Printer printer)
+    throws Exception
+{
+    if(isMessage(field)) {
+	printer.printf("%ssize += getMessageSize(%d,%s);\n",
+			GENPREFIX,field.getId(),value);
+    } else if(isEnum(field)) {
+	printer.printf("%ssize += getTagSize(Sort.Ast_enum,%d) + getSize(Sort.Ast_enum,%s.getValue());\n",
+			GENPREFIX,field.getId(),value);
+    } else {
+	String sort = javasort(field.getType());
+	printer.printf("%ssize += getTagSize(%s,%d) + getSize(%s,%s);\n",
+			GENPREFIX,sort,field.getId(),sort,value);
+    }
+}
+
+//////////////////////////////////////////////////
+
+// Convert a field name to an acceptable Java variable name
+String
+javafieldvar(AST.Field field)
+{
+    return converttojavaname(field.getName());
+}
+
+// Name of the read() local accumulating a repeated field
+String
+listvar(AST.Field field)
+{
+    return GENPREFIX + "list_" + field.getName();
+}
+
+// Name of the local holding the int values of a repeated enum field
+String
+valuesvar(AST.Field field)
+{
+    return GENPREFIX + "values_" + field.getName();
+}
+
+String
+converttojavaname(String name)
+{
+    /* Java and protobuf identifiers are same,
+       except we need to rename Java keywords
+    */
+    if(Arrays.binarySearch((Object[])JavaKeywords,(Object)name) >= 0)
+	name = name + "_";
+    return name;
+}
+
+/* Compute the Java name of a message or enum type;
+   it is qualified by the top-level class of the file
+   in which the type is declared (and by the package
+   if that differs from the package being generated).
+*/
+String
+javatypename(AST.Type asttype)
+{
+    String name = converttojavaname(asttype.getName());
+    AST parent = asttype.getParent();
+    while(parent != null && parent.getSort() == AST.Sort.MESSAGE) {
+	name = converttojavaname(parent.getName()) + "." + name;
+	parent = parent.getParent();
+    }
+    if(parent != null && parent.getSort() == AST.Sort.FILE) {
+	Annotation fa = (Annotation)parent.getAnnotation();
+	Annotation ta = (Annotation)topfile.getAnnotation();
+	name = fa.javaclass + "." + name;
+	if(fa.javapackage != null && !fa.javapackage.equals(ta.javapackage))
+	    name = fa.javapackage + "." + name;
+    }
+    return name;
+}
+
+/* Java type of a single element of the field */
+String
+javaelementtype(AST.Type asttype)
+{
+    String typ = null;
+
+    if(asttype.getSort() == AST.Sort.PRIMITIVETYPE) {
+	switch (((AST.PrimitiveType)asttype).getPrimitiveSort()) {
+	case SINT32:
+	case SFIXED32:
+	case INT32:
+	case FIXED32:
+	case UINT32:   typ = "int"; break;
+
+	case SINT64:
+	case SFIXED64:
+	case INT64:
+	case FIXED64:
+	case UINT64:   typ = "long"; break;
+
+	case FLOAT:   typ = "float"; break;
+	case DOUBLE:  typ = "double"; break;
+
+	case BOOL:    typ = "boolean"; break;
+	case STRING:  typ = "String"; break;
+
+	case BYTES:   typ = "byte[]"; break;
+	// No default because we want the compiler to complain if any new
+	// types are added.
+	}
+    } else if(asttype.getSort() == AST.Sort.ENUM
+	      || asttype.getSort() == AST.Sort.MESSAGE) {
+	typ = javatypename(asttype);
+    } else { // Illegal
+	System.err.println("Cannot translate type to Java Type: "+asttype.getName());
+    }
+    return typ;
+}
+
+String
+javatypefor(AST.Field field)
+{
+    String typ = javaelementtype(field.getType());
+    if(isRepeated(field)) typ = typ + "[]";
+    return typ;
+}
+
+String
+javasort(AST.Type asttype)
+{
+    if(asttype.getSort() == AST.Sort.PRIMITIVETYPE) {
+	switch (((AST.PrimitiveType)asttype).getPrimitiveSort()) {
+	case SINT32: return "Sort.Ast_sint32";
+	case SFIXED32: return "Sort.Ast_sfixed32";
+	case UINT32: return "Sort.Ast_uint32";
+	case FIXED32: return "Sort.Ast_fixed32";
+	case INT32: return "Sort.Ast_int32";
+	case SINT64: return "Sort.Ast_sint64";
+	case SFIXED64: return "Sort.Ast_sfixed64";
+	case UINT64: return "Sort.Ast_uint64";
+	case FIXED64: return "Sort.Ast_fixed64";
+	case INT64: return "Sort.Ast_int64";
+	case FLOAT: return "Sort.Ast_float";
+	case DOUBLE: return "Sort.Ast_double";
+	case BOOL: return "Sort.Ast_bool";
+	case STRING: return "Sort.Ast_string";
+	case BYTES: return "Sort.Ast_bytes";
+	// No default because we want the compiler to complain if any new
+	// types are added.
+	}
+    } else if(asttype.getSort() == AST.Sort.ENUM) {
+        return "Sort.Ast_enum";
+    } else if(asttype.getSort() == AST.Sort.MESSAGE) {
+        return "Sort.Ast_message";
+    } else {
+	System.err.println("Cannot translate type to Java sort:" + asttype.getSort().toString());
+    }
+    return null;
+}
+
+/* Expression that reads one instance of the field */
+String
+readvaluefor(AST.Field field)
+{
+    if(isMessage(field))
+	return String.format("read_message(new %s(rt))",javatypename(field.getType()));
+    String sort = javasort(field.getType());
+    switch (getPrimitiveSort(field)) {
+    case FLOAT: return "read_primitive_float("+sort+")";
+    case DOUBLE: return "read_primitive_double("+sort+")";
+    case BOOL: return "read_primitive_boolean("+sort+")";
+    case STRING: return "read_primitive_string("+sort+")";
+    case BYTES: return "read_primitive_bytes("+sort+")";
+    default: break;
+    }
+    if(javaelementtype(field.getType()).equals("long"))
+	return "read_primitive_long("+sort+")";
+    return "read_primitive_int("+sort+")";
+}
+
+String
+packedreaderfor(AST.Field field)
+{
+    switch (getPrimitiveSort(field)) {
+    case FLOAT: return "read_primitive_packed_float";
+    case DOUBLE: return "read_primitive_packed_double";
+    case BOOL: return "read_primitive_packed_bool";
+    default: break;
+    }
+    if(javaelementtype(field.getType()).equals("long"))
+	return "read_primitive_packed_long";
+    return "read_primitive_packed_int";
+}
+
+/* Builder class used to accumulate a repeated field */
+String
+builderfor(AST.Field field)
+{
+    if(isPrimitive(field)) {
+	String typ = javaelementtype(field.getType());
+	if(typ.equals("int")) return "Repeated.Ints";
+	if(typ.equals("long")) return "Repeated.Longs";
+	if(typ.equals("float")) return "Repeated.Floats";
+	if(typ.equals("double")) return "Repeated.Doubles";
+	if(typ.equals("boolean")) return "Repeated.Booleans";
+    }
+    return "Repeated.Of<"+javaelementtype(field.getType())+">";
+}
+
+/* Array creation expression for a repeated field */
+String
+newarrayfor(AST.Field field, String size)
+{
+    String typ = javaelementtype(field.getType());
+    if(typ.endsWith("[]")) // byte[]
+	return String.format("new %s[%s][]",typ.substring(0,typ.length()-2),size);
+    return String.format("new %s[%s]",typ,size);
+}
+
+/* Convert an array of enum constants to their int values */
+void
+generate_enumvalues(AST.Field field, Printer printer)
+    throws Exception
+{
+    String name = javafieldvar(field);
+    String values = valuesvar(field);
+    String i = GENPREFIX + "i";
+    printer.printf("int[] %s = new int[%s.length];\n",values,name);
+    printer.printf("for(int %s=0;%s<%s.length;%s++) %s[%s] = %s[%s].getValue();\n",
+		    i,i,name,i,values,i,name,i);
+}
+
+String
+hasbittest(AST.Field field)
+{
+    int bit = ((Annotation)field.getAnnotation()).hasbit;
+    return String.format("(%shasbits%d & 0x%x) != 0",GENPREFIX,bit/32,1<<(bit%32));
+}
+
+String
+hasbitset(AST.Field field)
+{
+    int bit = ((Annotation)field.getAnnotation()).hasbit;
+    return String.format("%shasbits%d |= 0x%x",GENPREFIX,bit/32,1<<(bit%32));
+}
+
+String
+hasbitclear(AST.Field field)
+{
+    int bit = ((Annotation)field.getAnnotation()).hasbit;
+    return String.format("%shasbits%d &= ~0x%x",GENPREFIX,bit/32,1<<(bit%32));
+}
+
+/* Initial value for a field without a default */
+String
+zerofor(AST.Field field)
+{
+    if(isRepeated(field) || !isPrimitive(field)) return "null";
+    String typ = javaelementtype(field.getType());
+    if(typ.equals("boolean")) return "false";
+    if(typ.equals("long")) return "0L";
+    if(typ.equals("float")) return "0.0f";
+    if(typ.equals("double")) return "0.0";
+    if(typ.equals("int")) return "0";
+    return "null"; // String and byte[]
+}
+
+/* Java literal for the DEFAULT option of the field, if any */
+String
+defaultfor(AST.Field field)
+{
+    AST.Type fieldtype = field.getType();
+    if(isRepeated(field)) return null;
+    // See if the field has a defined default
+    String value = (String)field.optionLookup("DEFAULT");
+    if(value == null && fieldtype.getSort() == AST.Sort.ENUM) {
+	// As in protobuf, an enum field defaults to its first value
+	List<AST.EnumValue> values = ((AST.Enum)fieldtype).getEnumValues();
+	if(values.size() > 0)
+	    value = values.get(0).getName();
+    }
+    if(value == null) return null;
+    value = value.trim();
+    if(fieldtype.getSort() == AST.Sort.ENUM) {
+	return javatypename(fieldtype) + "." + converttojavaname(value);
+    } else if(fieldtype.getSort() != AST.Sort.PRIMITIVETYPE)
+	return null;
+    String typ = javaelementtype(fieldtype);
+    switch (getPrimitiveSort(field)) {
+    case STRING:
+	return '"' + AuxFcns.escapify(value,'"',AuxFcns.EscapeMode.EMODE_JAVA) + '"';
+    case BYTES:
+	return '"' + AuxFcns.escapify(value,'"',AuxFcns.EscapeMode.EMODE_JAVA) + '"'
+	       + ".getBytes(ASTRuntime.utf8)";
+    case FLOAT: case DOUBLE:
+	String kind = (typ.equals("float") ? "Float" : "Double");
+	if(value.equals("inf")) return kind+".POSITIVE_INFINITY";
+	if(value.equals("-inf")) return kind+".NEGATIVE_INFINITY";
+	if(value.equals("nan")) return kind+".NaN";
+	return value + (typ.equals("float") ? "f" : "d");
+    case BOOL:
+	return value;
+    default: break;
+    }
+    // Integer types; unsigned values may not fit the signed java type
+    try {
+	java.math.BigInteger n = new java.math.BigInteger(value);
+	if(typ.equals("long"))
+	    return Long.toString(n.longValue()) + "L";
+	return Integer.toString(n.intValue());
+    } catch (NumberFormatException nfe) {
+	return (typ.equals("long") ? value + "L" : value); // e.g. hex
+    }
+}
+
+} // JavaGenerator
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 1998 - 2010. University Corporation for Atmospheric Research/Unidata
+ * Portions of this software were developed by the Unidata Program at the
+ * University Corporation for Atmospheric Research.
+ *
+ * Access and use of this software shall impose the following obligations
+ * and understandings on the user. The user is granted the right, without
+ * any fee or cost, to use, copy, modify, alter, enhance and distribute
+ * this software, and any derivative works thereof, and its supporting
+ * documentation for any purpose whatsoever, provided that this entire
+ * notice appears in all copies of the software, derivative works and
+ * supporting documentation.  Further, UCAR requests that the user credit
+ * UCAR/Unidata in any publications that result from the use of this
+ * software or in any product that includes this software. The names UCAR
+ * and/or Unidata, however, may not be used in any advertising or publicity
+ * to endorse or promote any products or commercial entity unless specific
+ * written permission is obtained from UCAR/Unidata. The user also
+ * understands that UCAR/Unidata is not obligated to provide the user with
+ * any support, consulting, training or assistance of any kind with regard
+ * to the use, operation and performance of this software nor to provide
+ * the user with any updates, revisions, new versions or "bug fixes."
+ *
+ * THIS SOFTWARE IS PROVIDED BY UCAR/UNIDATA "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL UCAR/UNIDATA BE LIABLE FOR ANY SPECIAL,
+ * INDIRECT OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING
+ * FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT,
+ * NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION
+ * WITH THE ACCESS, USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package unidata.ast.compiler.generators.java;
+
+import unidata.ast.compiler.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.io.*;
+
+import static unidata.ast.compiler.AST.*;
+import static unidata.ast.compiler.Debug.*;
+
+/**
+ * Implement any needed semantic tests
+ * for generating Java code.
+ */
+
+public class JavaSemantics extends unidata.ast.compiler.Semantics
+{
+
+/* Names used unqualified by the generated code; a message or
+   enum with one of these names would hide the real class.
+*/
+static final String[] ReservedTypeNames = new String[] {
+"ASTRuntime", "AbstractMessage", "IOException", "Repeated",
+"Sort", "String", "Wiretype"
+};
+
+//////////////////////////////////////////////////
+
+AST.Root root = null;
+ASTFactory factory = null;
+String[] argv = null;
+
+//////////////////////////////////////////////////
+// Constructor
+public JavaSemantics() {}
+
+//////////////////////////////////////////////////
+
+public boolean
+initialize(AST.Root root, String[] argv, ASTFactory factory)
+{
+    this.root = root;
+    this.factory = factory;
+    this.argv = argv;
+
+    // Define the predefined options
+    List<OptionDef> odefs = root.getOptionDefs();
+
+    // Add the predefined optiondefs; user defined options
+    // will have already been added by parser
+    odefs.add(new OptionDef("java_class", "string")); // name of the top-level class
+    odefs.add(new OptionDef("java_package", "string")); // overrides the protobuf package
+
+    return true;
+}
+
+//////////////////////////////////////////////////
+
+public boolean
+process(AST.Root root)
+{
+    if(!checknestednames(root)) return false;
+    if(!checkreservednames(root)) return false;
+    if(!checkclassnames(root)) return false;
+    return true;
+}
+
+boolean
+checknestednames(AST.Root root)
+{
+    // Since the Java code generates messages and enums as nested
+    // classes, a message or enum may not have the same name as
+    // any enclosing message (javac rejects such a nested class).
+    for(AST node: root.getNodeSet()) {
+        switch (node.getSort()) {
+        case ENUM: case MESSAGE:
+	    for(AST parent=node.getParent();parent != null;parent=parent.getParent()) {
+		if(parent.getSort() != AST.Sort.MESSAGE) break;
+		if(parent.getName().equals(node.getName()))
+		    return duperror(node,parent,"Nested type has the same name as an enclosing message; will prevent proper Java code generation");
+	    }
+            break;
+        default:
+	    break;
+        }
+    }
+    return true;
+}
+
+boolean
+checkreservednames(AST.Root root)
+{
+    // The generated code names its own locals and bookkeeping
+    // fields with JavaGenerator.GENPREFIX, so no field or enum
+    // value may start with it; also, no type may hide a class
+    // that the generated code refers to by its simple name.
+    for(AST node: root.getNodeSet()) {
+        switch (node.getSort()) {
+        case FIELD: case ENUMVALUE:
+	    if(node.getName().startsWith(JavaGenerator.GENPREFIX))
+		return semerror(node,"Name begins with the reserved prefix '"
+				     +JavaGenerator.GENPREFIX+"': "+node.getName());
+            break;
+        case ENUM: case MESSAGE:
+	    if(Arrays.asList(ReservedTypeNames).contains(node.getName()))
+		return semerror(node,"Type name would hide a class used by the generated Java code: "
+				     +node.getName());
+            break;
+        default:
+	    break;
+        }
+    }
+    return true;
+}
+
+boolean
+checkclassnames(AST.Root root)
+{
+    // The types of a file are nested in its top-level class,
+    // so an explicit java_class may not name any of them
+    // (the default name is changed instead; see JavaGenerator).
+    for(AST.File file: root.getFileSet()) {
+	String jclass = (String)file.optionLookup("java_class");
+	if(jclass == null || jclass.length() == 0) continue;
+	if(declarestype(file,jclass))
+	    return semerror(file,"java_class names a type declared in "
+				 +file.getName()+": "+jclass);
+    }
+    return true;
+}
+
+/* Does the file declare a message or enum, at any
+   depth of nesting, with the given name
+*/
+static boolean
+declarestype(AST.File file, String name)
+{
+    for(AST.Enum e: file.getEnums())
+	if(e.getName().equals(name)) return true;
+    for(AST.Message msg: file.getMessages())
+	if(declarestype(msg,name)) return true;
+    return false;
+}
+
+static boolean
+declarestype(AST.Message msg, String name)
+{
+    if(msg.getName().equals(name)) return true;
+    for(AST.Enum e: msg.getEnums())
+	if(e.getName().equals(name)) return true;
+    for(AST.Message sub: msg.getMessages())
+	if(declarestype(sub,name)) return true;
+    return false;
+}
+
+} // class JavaSemantics
@@ -10,6 +10,9 @@ package unidata.ast.runtime;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.lang.reflect.Array;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
@@ -100,13 +103,132 @@ public enum Encoder {
     }
 }
 
+//////////////////////////////////////////////////
+// Registry of Encoding factories, keyed by Encoder;
+// the built-in encodings are registered statically.
+
+static final Map<Encoder,Encoding.Factory> factories
+	= new EnumMap<Encoder,Encoding.Factory>(Encoder.class);
+
+static {
+    factories.put(Encoder.Protobuf, new Encoding.Factory() {
+	public Encoding newEncoding() throws ASTException
+	    {return new ProtobufEncoding();}
+    });
+    factories.put(Encoder.XDR, new Encoding.Factory() {
+	public Encoding newEncoding() throws ASTException
+	    {return new XDREncoding();}
+    });
+}
+
+/* Replace the factory used to create the encoding for coder */
+static public void
+registerEncoding(Encoder coder, Encoding.Factory factory)
+{
+    synchronized (factories) {
+	factories.put(coder,factory);
+    }
+}
+
+static Encoding.Factory
+getFactory(Encoder coder)
+{
+    synchronized (factories) {
+	return factories.get(coder);
+    }
+}
+
+//////////////////////////////////////////////////
+// Runtime reuse. A runtime (and the scratch buffers of
+// its encoding) can be rebound to a new AbstractIO with
+// reset(), either explicitly, through a Pool, or through
+// the per-thread instances returned by forThread().
+
+/* Per thread runtimes; one per Encoder */
+static final ThreadLocal<EnumMap<Encoder,ASTRuntime>> threadruntimes
+	= new ThreadLocal<EnumMap<Encoder,ASTRuntime>>() {
+	    protected EnumMap<Encoder,ASTRuntime> initialValue()
+		{return new EnumMap<Encoder,ASTRuntime>(Encoder.class);}
+	};
+
+/* Return this thread's runtime for the given encoding bound to io.
+   Note that a subsequent call on the same thread (with the same
+   encoding) rebinds and returns the same runtime instance.
+*/
+static public ASTRuntime
+forThread(Encoder coder, AbstractIO io)
+    throws ASTException
+{
+    EnumMap<Encoder,ASTRuntime> map = threadruntimes.get();
+    ASTRuntime rt = map.get(coder);
+    if(rt == null) {
+	rt = new ASTRuntime(coder,io);
+	map.put(coder,rt);
+    } else
+	rt.reset(io);
+    return rt;
+}
+
+/* Explicit, thread-safe pool of runtimes for one encoding */
+static public class Pool
+{
+    static final int DFALTMAXPOOLED = 64;
+
+    Encoder coder;
+    int maxpooled;
+    ConcurrentLinkedQueue<ASTRuntime> free = new ConcurrentLinkedQueue<ASTRuntime>();
+
+    public Pool(Encoder coder) {this(coder,DFALTMAXPOOLED);}
+
+    public Pool(Encoder coder, int maxpooled)
+    {
+	this.coder = coder;
+	this.maxpooled = maxpooled;
+    }
+
+    public ASTRuntime
+    acquire(AbstractIO io)
+        throws ASTException
+    {
+	ASTRuntime rt = free.poll();
+	if(rt == null)
+	    return new ASTRuntime(coder,io);
+	rt.reset(io);
+	return rt;
+    }
+
+    /* Return a runtime to the pool; its io is not closed */
+    public void
+    release(ASTRuntime rt)
+    {
+	if(rt == null || rt.coder != coder) return;
+	rt.setBackpatch(false);
+	rt.setProjection(null);
+	rt.reset(null);
+	if(free.size() < maxpooled) free.offer(rt);
+    }
+}
+
 //////////////////////////////////////////////////
 // Instance fields
 
 AbstractIO io = null;
 
+Encoder coder = null;
 Encoding encoder = null;
 
+/* Non-null when in backpatching write mode; see setBackpatch() */
+BackpatchIO patchio = null;
+byte[] prefixbuffer = new byte[Sort.MAXTYPESIZE];
+
+/* Non-null when reading with a projection; see setProjection() */
+Projection rootprojection = null;
+Projection projection = null; // applies to the current message
+Projection[] projections = new Projection[16]; // enclosing messages
+int projectiondepth = 0;
+int lastfieldno = 0; // of the most recent tag passed by read_tag
+boolean projecting = false;
+
 //////////////////////////////////////////////////
 // Constructor(s)
 
@@ -142,47 +264,157 @@ public void
 setIO(AbstractIO io)
 {
     this.io = io;
-    if(encoder != null && io != null)
-	encoder.setIO(io);
+    if(patchio != null)
+	patchio.setTarget(io);
+    if(encoder != null)
+	encoder.setIO(patchio != null ? patchio : io);
+}
+
+public AbstractIO getIO() {return io;}
+
+public Encoder getEncoding() {return coder;}
+
+/* Rebind this runtime to a new AbstractIO so that it, and the
+   scratch space of its encoding, can be reused for another message.
+*/
+public void
+reset(AbstractIO io)
+{
+    setIO(io);
+    setProjection(rootprojection);
 }
 
-/* Reclaim a runtime instance  */
+/* Force any buffered output through to the underlying stream */
+public void
+flush()
+    throws IOException
+{
+    if(patchio != null)
+	patchio.flush();
+    else
+	io.flush();
+}
+
+/* Flush and reclaim a runtime instance  */
 public void
 close()
     throws IOException
 {
+    if(patchio != null) patchio.flush();
     io.close();
 }
 
 //////////////////////////////////////////////////
-// The Encoding is used to find (by reflection)
-// the name of the encoding class
+// Backpatching write mode. Normally a message is written in two
+// passes: a size pass caches the size of every submessage and the
+// write pass then uses the cached sizes as length prefixes.
+// In backpatching mode, the write pass alone is done: a slot for
+// each submessage's size prefix is reserved, the body is written
+// after it, and the size is filled in at the end (see BackpatchIO).
+// Only the currently open submessages are ever buffered; this mode
+// is meant for writing and should be turned off before reading.
+
+public void
+setBackpatch(boolean enable)
+{
+    if(enable == (patchio != null)) return;
+    patchio = (enable ? new BackpatchIO(io) : null);
+    if(encoder != null)
+	encoder.setIO(patchio != null ? patchio : io);
+}
+
+public boolean isBackpatch() {return patchio != null;}
+
+//////////////////////////////////////////////////
+// Decoded strings may be shared through a StringCache,
+// so that repeated values yield the same String instance;
+// null (the default) disables the cache.
+
+public void setStringCache(StringCache cache) {encoder.strings = cache;}
+
+public StringCache getStringCache() {return encoder.strings;}
+
+//////////////////////////////////////////////////
+// Projected reads. With a Projection set, only the fields
+// it includes are decoded; all other fields are skipped
+// with skip_field() and keep their default values.
+// The projection applies to the top-level message read
+// through this runtime; nested Projections apply to the
+// corresponding submessages.
+
+public void
+setProjection(Projection projection)
+{
+    this.rootprojection = projection;
+    this.projection = projection;
+    this.projecting = (projection != null);
+    this.projectiondepth = 0;
+}
+
+public Projection getProjection() {return rootprojection;}
+
+/* Enter the submessage of the field whose tag was just read */
+void
+push_projection()
+{
+    if(!projecting) return;
+    if(projectiondepth == projections.length)
+	projections = java.util.Arrays.copyOf(projections,2*projectiondepth);
+    projections[projectiondepth++] = projection;
+    if(projection != null)
+	projection = projection.get(lastfieldno);
+}
+
+void
+pop_projection()
+{
+    if(!projecting) return;
+    projection = projections[--projectiondepth];
+    projections[projectiondepth] = null;
+}
+
+/* Reserve the size prefix of a submessage whose body follows */
+public void
+begin_message()
+    throws IOException
+{
+    patchio.begin(encoder.getMaxSizePrefix());
+}
+
+/* Backpatch the size prefix of the innermost begun submessage;
+   return the size of its body.
+*/
+public int
+end_message()
+    throws IOException
+{
+    int size = patchio.getBodySize();
+    int len = encoder.encode_size(size,prefixbuffer);
+    patchio.end(prefixbuffer,len);
+    return size;
+}
+
+//////////////////////////////////////////////////
+// The Encoder is used to find the registered
+// factory for the encoding class
 
 public void
 setEncoding(Encoder coder)
     throws ASTException
 {
-    ClassLoader loader = ASTRuntime.class.getClassLoader();
-
-   // Try to locate the encoder class
-   String encodingclassname = DFALTPACKAGE
-				    + "."
-				    + coder.getClassName()
-				    ;
-    Encoding encoder = null;
-    Class encodingclass = null;
-    try {
-        encodingclass = Class.forName(encodingclassname);
-    } catch (ClassNotFoundException e) {
-	throw new ASTException("Class not found: "+encodingclassname);
-    }
-    try {
-	encoder = (Encoding)encodingclass.newInstance();
-    } catch (Exception e) {
-	throw new ASTException("Could not create encoder instance: "+encodingclassname);
-    }
-    if(io != null)
+    if(coder == null)
+	throw new ASTException("No encoding specified");
+    Encoding.Factory factory = getFactory(coder);
+    if(factory == null)
+	throw new ASTException("No encoding registered for: "+coder.name());
+    Encoding encoder = factory.newEncoding();
+    if(this.encoder != null)
+        encoder.strings = this.encoder.strings;
+    if(patchio != null)
+        encoder.setIO(patchio);
+    else if(io != null)
         encoder.setIO(io);
+    this.coder = coder;
     this.encoder = encoder;
 }
 
@@ -268,9 +500,25 @@ public int getTagSize(int sort, int fieldno)
 public void write_tag(int sort, int fieldno) throws IOException 
 {encoder.write_tag(sort, fieldno);}
 
-/* Procedure to extract tags; args simulate call by ref */
-public boolean read_tag(int[] wiretype, int[] fieldno) throws IOException
-{return encoder.read_tag(wiretype, fieldno);}
+/* Procedure to extract tags; args simulate call by ref.
+   When projecting, fields outside the projection are skipped here,
+   so the generated code never sees them.
+*/
+public boolean
+read_tag(int[] wiretype, int[] fieldno)
+    throws IOException
+{
+    if(!projecting)
+	return encoder.read_tag(wiretype, fieldno);
+    while(encoder.read_tag(wiretype, fieldno)) {
+	if(projection == null || projection.contains(fieldno[0])) {
+	    lastfieldno = fieldno[0];
+	    return true;
+	}
+	encoder.skip_field(wiretype[0], fieldno[0]);
+    }
+    return false;
+}
 
 /* Procedures to write and sizes */
 public void write_size(int size) throws IOException
@@ -357,7 +605,9 @@ public void write_primitive_packed(int sort, int[] val) throws IOException
 public void write_primitive_packed(int sort, long[] val) throws IOException
 {encoder.write_primitive_packed(sort, val);}
 
-/* Read into Repeated field */
+/* Read into Repeated field; note that each call
+   copies the whole list, see the Repeated builders below.
+*/
 public double[] repeat_append(int sort, double newval, double[] list)
 {return encoder.repeat_append(sort, newval, list);}
 
@@ -383,6 +633,64 @@ public byte[][] repeat_append(int sort, byte[] newval, byte[][] list)
 public Object repeat_extend(Object list, java.lang.Class klass)
 {return encoder.repeat_extend(list, klass);}
 
+/* Amortized-growth accumulation of repeated fields;
+   the list argument may be null on the first call.
+   Use repeat_finish to obtain the trimmed array
+   once the enclosing message has been read.
+*/
+public Repeated.Doubles repeat_append(int sort, double newval, Repeated.Doubles list)
+{if(list == null) list = new Repeated.Doubles(); list.add(newval); return list;}
+
+public Repeated.Floats repeat_append(int sort, float newval, Repeated.Floats list)
+{if(list == null) list = new Repeated.Floats(); list.add(newval); return list;}
+
+public Repeated.Booleans repeat_append(int sort, boolean newval, Repeated.Booleans list)
+{if(list == null) list = new Repeated.Booleans(); list.add(newval); return list;}
+
+public Repeated.Ints repeat_append(int sort, int newval, Repeated.Ints list)
+{if(list == null) list = new Repeated.Ints(); list.add(newval); return list;}
+
+public Repeated.Longs repeat_append(int sort, long newval, Repeated.Longs list)
+{if(list == null) list = new Repeated.Longs(); list.add(newval); return list;}
+
+public <T> Repeated.Of<T> repeat_append(int sort, T newval, Repeated.Of<T> list)
+{if(list == null) list = new Repeated.Of<T>(); list.add(newval); return list;}
+
+// Append a packed array to a repeated field
+public Repeated.Doubles repeat_extend(int sort, double[] newvals, Repeated.Doubles list)
+{if(list == null) list = new Repeated.Doubles(); list.addAll(newvals); return list;}
+
+public Repeated.Floats repeat_extend(int sort, float[] newvals, Repeated.Floats list)
+{if(list == null) list = new Repeated.Floats(); list.addAll(newvals); return list;}
+
+public Repeated.Booleans repeat_extend(int sort, boolean[] newvals, Repeated.Booleans list)
+{if(list == null) list = new Repeated.Booleans(); list.addAll(newvals); return list;}
+
+public Repeated.Ints repeat_extend(int sort, int[] newvals, Repeated.Ints list)
+{if(list == null) list = new Repeated.Ints(); list.addAll(newvals); return list;}
+
+public Repeated.Longs repeat_extend(int sort, long[] newvals, Repeated.Longs list)
+{if(list == null) list = new Repeated.Longs(); list.addAll(newvals); return list;}
+
+// Trim an accumulated repeated field; null if nothing was read
+public double[] repeat_finish(Repeated.Doubles list)
+{return (list == null ? null : list.finish());}
+
+public float[] repeat_finish(Repeated.Floats list)
+{return (list == null ? null : list.finish());}
+
+public boolean[] repeat_finish(Repeated.Booleans list)
+{return (list == null ? null : list.finish());}
+
+public int[] repeat_finish(Repeated.Ints list)
+{return (list == null ? null : list.finish());}
+
+public long[] repeat_finish(Repeated.Longs list)
+{return (list == null ? null : list.finish());}
+
+public <T> T[] repeat_finish(Repeated.Of<T> list, T[] output)
+{return (list == null ? null : list.finish(output));}
+
 } /*class ASTRuntime*/
 
 
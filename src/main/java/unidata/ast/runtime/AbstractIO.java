@@ -21,6 +21,9 @@ public enum IOmode {Ast_read, Ast_write;}
 static final int MAX_STACK_SIZE = 1024;
 static final int MAXJTYPESIZE = 16; //bytes
 
+/* Default size of the internal read and write buffers */
+static final int DFALTBUFFERSIZE = 8192; //bytes
+
 //////////////////////////////////////////////////
 // Instance fields
 
@@ -33,6 +36,21 @@ int avail = Integer.MAX_VALUE; // ~ infinite
 
 Stack<Integer> marks = null; // track values of avail for reading only
 
+// Read buffer; the bytes in rbuffer[rpos..rlimit) have been
+// pulled from the input but not yet consumed by the decoder.
+byte[] rbuffer = null;
+int rpos = 0;
+int rlimit = 0;
+int buffersize = DFALTBUFFERSIZE;
+boolean wrapped = false; // rbuffer belongs to the caller; never refill it
+
+// Write buffer; small writes are coalesced in wbuffer[0..wpos)
+// and only passed to the output by flush().
+byte[] wbuffer = null;
+int wpos = 0;
+
+byte[] utf8buffer = null; // scratch for writeutf8()
+
 //////////////////////////////////////////////////
 // Constructor(s) 
 
@@ -48,6 +66,11 @@ void reset()
     mode = null;
     marks = new Stack<Integer>(); // track values of avail for reading only
     avail = Integer.MAX_VALUE; // ~ infinite
+    rpos = 0;
+    rlimit = 0;
+    wpos = 0;
+    if(wrapped) rbuffer = null;
+    wrapped = false;
 }
 //////////////////////////////////////////////////
 // set/get
@@ -57,15 +80,39 @@ public void setAvail(int avail)
    this.avail = avail;
 }
 
+// Note that the read buffer pulls ahead from the input stream,
+// so the stream should not be shared with other readers.
+public void setBufferSize(int size)
+{
+    if(size < MAXJTYPESIZE) size = MAXJTYPESIZE;
+    this.buffersize = size;
+    if(rbuffer != null && rpos == rlimit && !wrapped) {
+	// Nothing buffered, so just drop the old buffer
+	rbuffer = null;
+	rpos = 0;
+	rlimit = 0;
+    }
+    if(wbuffer != null && wpos == 0)
+	wbuffer = null;
+}
+
+public int getBufferSize() {return buffersize;}
+
+// Rebinding the stream first passes any output still in the
+// write buffer on to the old stream, so none of it is lost.
 public void setStream(InputStream s)
+    throws IOException
 {
+    if(wpos > 0) flush();
     reset();
     istream = s;
     setMode(IOmode.Ast_read);
 }
 
 public void setStream(OutputStream s)
+    throws IOException
 {
+    if(wpos > 0) flush();
     reset();
     ostream = s;
     setMode(IOmode.Ast_write);
@@ -85,8 +132,135 @@ public void
 write(int len, byte[] buf) /* writes stream n bytes at a time */
     throws IOException
 {
-    if(ostream != null)
-        ostream.write(buf,0,len);    
+    if(wbuffer == null) wbuffer = new byte[buffersize];
+    if(wpos + len > wbuffer.length) {
+	drain(wbuffer,0,wpos);
+	wpos = 0;
+	if(len >= wbuffer.length) {
+	    // Large writes bypass the buffer
+	    drain(buf,0,len);
+	    return;
+	}
+    }
+    System.arraycopy(buf,0,wbuffer,wpos,len);
+    wpos += len;
+}
+
+/* Write s, whose UTF-8 encoding is len bytes long (see Utf8.length),
+   as UTF-8. By default, s is encoded into a scratch buffer that is
+   passed to write(); subclasses whose output goes through the write
+   buffer encode straight into it (see writeutf8buffered).
+*/
+public void
+writeutf8(String s, int len)
+    throws IOException
+{
+    if(len > DFALTBUFFERSIZE) {
+	// Do not hold on to a large scratch buffer
+	byte[] buf = new byte[len];
+	Utf8.encode(s,buf,0);
+	write(len,buf);
+	return;
+    }
+    if(utf8buffer == null) utf8buffer = new byte[DFALTBUFFERSIZE];
+    Utf8.encode(s,utf8buffer,0);
+    write(len,utf8buffer);
+}
+
+/* writeutf8 for subclasses that use the inherited write() */
+void
+writeutf8buffered(String s, int len)
+    throws IOException
+{
+    if(wbuffer == null) wbuffer = new byte[buffersize];
+    if(wpos + len > wbuffer.length) {
+	drain(wbuffer,0,wpos);
+	wpos = 0;
+	if(len > wbuffer.length) {
+	    // Too large to buffer; pass it on directly
+	    byte[] buf = new byte[len];
+	    Utf8.encode(s,buf,0);
+	    drain(buf,0,len);
+	    return;
+	}
+    }
+    wpos += Utf8.encode(s,wbuffer,wpos);
+}
+
+/* Pass len bytes from buf to the underlying output.
+   Subclasses that do not write to an OutputStream
+   should override this.
+*/
+protected void
+drain(byte[] buf, int offset, int len)
+    throws IOException
+{
+    if(ostream != null && len > 0)
+        ostream.write(buf,offset,len);
+}
+
+/* Push any buffered output through to the underlying output */
+public void
+flush()
+    throws IOException
+{
+    if(wpos > 0) {
+	drain(wbuffer,0,wpos);
+	wpos = 0;
+    }
+    if(ostream != null) ostream.flush();
+}
+
+/* Pull up to len bytes from the underlying input into buf;
+   return the number of bytes obtained or -1 at end of input.
+   Subclasses that do not read from an InputStream
+   should override this.
+*/
+protected int
+fill(byte[] buf, int offset, int len)
+    throws IOException
+{
+    if(istream == null) return -1;
+    return istream.read(buf,offset,len);
+}
+
+/* Pass over up to n bytes of the underlying input without
+   reading them; return the number of bytes actually skipped.
+   Subclasses that can seek should override this.
+*/
+protected long
+skipinput(long n)
+    throws IOException
+{
+    if(istream == null) return 0;
+    long total = 0;
+    while(total < n) {
+	long count = istream.skip(n - total);
+	if(count <= 0) break;
+	total += count;
+    }
+    return total;
+}
+
+/* Shift any unconsumed bytes to the front of the read buffer
+   and top it up from the input; return false if no more bytes
+   could be obtained.
+*/
+boolean
+refill()
+    throws IOException
+{
+    if(wrapped) return false; // all the input is already in rbuffer
+    if(rbuffer == null) rbuffer = new byte[buffersize];
+    int remain = rlimit - rpos;
+    if(remain > 0 && rpos > 0)
+	System.arraycopy(rbuffer,rpos,rbuffer,0,remain);
+    rpos = 0;
+    rlimit = remain;
+    int count = fill(rbuffer,rlimit,rbuffer.length - rlimit);
+    if(count <= 0) return false;
+    rlimit += count;
+    return true;
 }
 
 // This does not throw exception so we can
@@ -97,28 +271,149 @@ read(byte[] buf, int offset, int len) // reads stream n bytes at a time;
                            // return false if not enough bytes avail
     throws IOException
 {
-    if(istream != null && len <= avail) {
-	int left = len;
-	int pos = offset;
-	while(left > 0) {
-	    int count = istream.read(buf,pos,left);
-	    if(count < 0) break;
-	    left -= count;	    
-	    pos += count;
-            avail -= count;
+    if(len > avail) return false;
+    int left = len;
+    int pos = offset;
+    while(left > 0) {
+	int count = rlimit - rpos;
+	if(count == 0) {
+	    if(left >= buffersize) {
+		// Large reads bypass the buffer
+		count = fill(buf,pos,left);
+		if(count <= 0) break;
+	        left -= count;
+	        pos += count;
+	        avail -= count;
+		continue;
+	    }
+	    if(!refill()) break;
+	    count = rlimit - rpos;
+	}
+	if(count > left) count = left;
+	System.arraycopy(rbuffer,rpos,buf,pos,count);
+	rpos += count;
+	left -= count;
+	pos += count;
+	avail -= count;
+    }
+    return (left == 0);
+}
+
+/* Pass over n input bytes without copying them; return false
+   if n exceeds avail or the input ends first.
+   Bytes already in the read buffer are skipped by advancing
+   its position, the rest by skipinput().
+*/
+public boolean
+skip(long n)
+    throws IOException
+{
+    if(n < 0 || n > avail) return false;
+    long left = n;
+    int count = rlimit - rpos;
+    if(count > left) count = (int)left;
+    rpos += count;
+    avail -= count;
+    left -= count;
+    if(left > 0 && !wrapped) {
+	long skipped = skipinput(left);
+	avail -= (int)skipped;
+	left -= skipped;
+	// Whatever skipinput could not pass over is read through the buffer
+	while(left > 0 && refill()) {
+	    count = rlimit - rpos;
+	    if(count > left) count = (int)left;
+	    rpos += count;
+	    avail -= count;
+	    left -= count;
 	}
-        if(left == 0) return true;
     }
-    return false;
+    return (left == 0);
+}
+
+/* Use the caller's bytes buf[offset..offset+len) as the
+   complete input; decoding then works directly against them.
+*/
+void
+wrap(byte[] buf, int offset, int len)
+{
+    rbuffer = buf;
+    rpos = offset;
+    rlimit = offset + len;
+    wrapped = true;
+}
+
+/* Make sure at least n bytes are in the read buffer so the
+   caller can decode them in place from rbuffer[rpos..];
+   return false if n exceeds avail or the buffer capacity,
+   if the input runs out, or if there is no read buffer
+   at all (as with MappedFileIO), even when n == 0.
+*/
+boolean
+ensure(int n)
+    throws IOException
+{
+    if(n > avail) return false;
+    while(rlimit - rpos < n) {
+	int capacity = (rbuffer == null ? buffersize : rbuffer.length);
+	if(wrapped || n > capacity) return false;
+	if(!refill()) return false;
+    }
+    return (rbuffer != null);
+}
+
+/* Return the next n input bytes as a ByteBuffer over the
+   input itself, consuming them, or null if they cannot be
+   had without copying; see ProtobufEncoding.packedbytes.
+*/
+java.nio.ByteBuffer
+slice(int n)
+    throws IOException
+{
+    if(!ensure(n)) return null;
+    java.nio.ByteBuffer view = java.nio.ByteBuffer.wrap(rbuffer,rpos,n).slice();
+    consume(n);
+    return view;
+}
+
+/* Return true if no more input can be read,
+   either because avail is exhausted or the input has ended.
+*/
+boolean
+atEOF()
+    throws IOException
+{
+    return (avail <= 0 || (rpos == rlimit && !refill()));
+}
+
+/* Consume n bytes already known to be in the read buffer */
+void
+consume(int n)
+{
+    rpos += n;
+    avail -= n;
+}
+
+/* Read a single byte; return it as 0..255
+   or -1 if no byte is available.
+*/
+public int
+readbyte()
+    throws IOException
+{
+    if(avail <= 0) return -1;
+    if(rpos == rlimit && !refill()) return -1;
+    avail--;
+    return (rbuffer[rpos++] & 0xff);
 }
 
 public void
 mark(int  n)
     throws IOException // limit reads to n bytes
 {
-    if(n <= 0)
+    if(n < 0 || n > avail)
 	throw new IOException("AbstractIO.mark: illegal argument "+n);
-    marks.push(avail);
+    marks.push(avail - n); // what remains of the enclosing limit
     avail = n;
 }
 
@@ -128,14 +423,17 @@ unmark() // restore previous markn limit
 {
     if(marks.empty())
 	throw new IOException("AbstractIO.unmark: empty stack");
-    avail = marks.pop();
+    // Any unread bytes of the marked region go back to the enclosing limit
+    avail = marks.pop() + avail;
 }
 
 public void
 close()  /* reclaim this runtime instance */
     throws IOException
 {
-    // do nothing
+    flush();
+    if(ostream != null) ostream.close();
+    if(istream != null) istream.close();
 }
 
 } /*class AbstractIO*/
@@ -19,6 +19,94 @@ public AbstractMessage() {this(null);}
 
 public AbstractMessage(ASTRuntime rt) {this.rt = rt;}
 
+//////////////////////////////////////////////////
+// Writing is done in two passes: getSize() computes the size of
+// every submessage in the tree once and caches it in cachedsize,
+// then write_fields() uses the cached sizes for the length prefixes.
+// write() always starts with a fresh size pass, so a message may
+// be freely modified between writes.
+// If the runtime is in backpatching mode (ASTRuntime.setBackpatch),
+// the size pass is skipped and each submessage's length prefix is
+// filled in after its body has been written.
+
+/* Serialized size computed by the most recent size pass */
+protected int cachedsize = -1;
+
+/* Size from the most recent getSize(), or -1 if never sized */
+public int getCachedSize() {return cachedsize;}
+
+public void
+write() throws IOException
+{
+    if(!rt.isBackpatch())
+	getSize(); // size pass
+    write_fields();
+}
+
+//////////////////////////////////////////////////
+// Implemented by the generated message classes
+
+/* Write the fields assuming that submessage sizes are cached */
+abstract protected void write_fields() throws IOException;
+
+/* Reset every field to its default */
+abstract public void clear();
+
+/* Equivalent to clear() followed by read_fields() */
+abstract public AbstractMessage read() throws IOException;
+
+/* Decode the fields in the input; only the fields actually
+   present are assigned (see LazyMessage).
+*/
+abstract protected void read_fields() throws IOException;
+
+/* Compute the size and cache it (with those of all submessages) */
+abstract public int getSize() throws IOException;
+
+//////////////////////////////////////////////////
+// Submessage support for the generated code; a submessage
+// is always (de)serialized using its parent's runtime.
+
+public void
+write_message(int fieldno, AbstractMessage msg) throws IOException
+{
+    msg.rt = rt;
+    if(rt.isBackpatch()) {
+	write_tag(ASTRuntime.Sort.Ast_message,fieldno);
+	rt.begin_message();
+	msg.write_fields();
+	rt.end_message();
+	return;
+    }
+    if(msg.cachedsize < 0) msg.getSize();
+    write_tag(ASTRuntime.Sort.Ast_message,fieldno);
+    write_size(msg.cachedsize);
+    msg.write_fields();
+}
+
+/* Size of a submessage field including its tag and size prefix;
+   as a side effect, the submessage's size is cached.
+*/
+public int
+getMessageSize(int fieldno, AbstractMessage msg) throws IOException
+{
+    msg.rt = rt;
+    return getTagSize(ASTRuntime.Sort.Ast_message,fieldno)
+	   + getMessageSize(msg.getSize());
+}
+
+public <T extends AbstractMessage> T
+read_message(T msg) throws IOException
+{
+    msg.rt = rt;
+    mark(read_size());
+    rt.push_projection();
+    msg.read();
+    rt.pop_projection();
+    unmark();
+    return msg;
+}
+
 // provide wrappers around rt methods
 
 public boolean read(byte[] buf, int offset, int len) throws IOException
@@ -188,6 +276,111 @@ public byte[][] repeat_append(int sort, byte[] newval, byte[][] list)
 public Object repeat_extend(Object list, java.lang.Class klass)
 {return rt.repeat_extend( list, klass);}
 
+/* Amortized-growth repeated field accumulation */
+public Repeated.Doubles repeat_append(int sort, double newval, Repeated.Doubles list)
+{return rt.repeat_append(sort, newval, list);}
+
+public Repeated.Floats repeat_append(int sort, float newval, Repeated.Floats list)
+{return rt.repeat_append(sort, newval, list);}
+
+public Repeated.Booleans repeat_append(int sort, boolean newval, Repeated.Booleans list)
+{return rt.repeat_append(sort, newval, list);}
+
+public Repeated.Ints repeat_append(int sort, int newval, Repeated.Ints list)
+{return rt.repeat_append(sort, newval, list);}
+
+public Repeated.Longs repeat_append(int sort, long newval, Repeated.Longs list)
+{return rt.repeat_append(sort, newval, list);}
+
+public <T> Repeated.Of<T> repeat_append(int sort, T newval, Repeated.Of<T> list)
+{return rt.repeat_append(sort, newval, list);}
+
+public Repeated.Doubles repeat_extend(int sort, double[] newvals, Repeated.Doubles list)
+{return rt.repeat_extend(sort, newvals, list);}
+
+public Repeated.Floats repeat_extend(int sort, float[] newvals, Repeated.Floats list)
+{return rt.repeat_extend(sort, newvals, list);}
+
+public Repeated.Booleans repeat_extend(int sort, boolean[] newvals, Repeated.Booleans list)
+{return rt.repeat_extend(sort, newvals, list);}
+
+public Repeated.Ints repeat_extend(int sort, int[] newvals, Repeated.Ints list)
+{return rt.repeat_extend(sort, newvals, list);}
+
+public Repeated.Longs repeat_extend(int sort, long[] newvals, Repeated.Longs list)
+{return rt.repeat_extend(sort, newvals, list);}
+
+public double[] repeat_finish(Repeated.Doubles list)
+{return rt.repeat_finish(list);}
+
+public float[] repeat_finish(Repeated.Floats list)
+{return rt.repeat_finish(list);}
+
+public boolean[] repeat_finish(Repeated.Booleans list)
+{return rt.repeat_finish(list);}
+
+public int[] repeat_finish(Repeated.Ints list)
+{return rt.repeat_finish(list);}
+
+public long[] repeat_finish(Repeated.Longs list)
+{return rt.repeat_finish(list);}
+
+public <T> T[] repeat_finish(Repeated.Of<T> list, T[] output)
+{return rt.repeat_finish(list, output);}
+
+//////////////////////////////////////////////////
+// Enum values read from the input that have no constant in
+// the generated Java enum. They are kept as (fieldno,value)
+// pairs and written back after the known fields, so that
+// decoding and re-encoding a message does not lose them.
+
+Repeated.Ints unknownenums = null;
+
+public void
+keep_unknown_enum(int fieldno, int value)
+{
+    if(unknownenums == null) unknownenums = new Repeated.Ints();
+    unknownenums.add(fieldno);
+    unknownenums.add(value);
+}
+
+public void clear_unknown_enums() {unknownenums = null;}
+
+/* The kept values of field fieldno, in input order */
+public int[]
+get_unknown_enums(int fieldno)
+{
+    Repeated.Ints values = new Repeated.Ints();
+    if(unknownenums != null) {
+	for(int i=0;i<unknownenums.count;i+=2)
+	    if(unknownenums.values[i] == fieldno)
+		values.add(unknownenums.values[i+1]);
+    }
+    return values.finish();
+}
+
+public void
+write_unknown_enums() throws IOException
+{
+    if(unknownenums == null) return;
+    for(int i=0;i<unknownenums.count;i+=2) {
+	write_tag(ASTRuntime.Sort.Ast_enum,unknownenums.values[i]);
+	write_primitive(ASTRuntime.Sort.Ast_enum,unknownenums.values[i+1]);
+    }
+}
+
+public int
+getUnknownEnumsSize() throws ASTException
+{
+    int size = 0;
+    if(unknownenums == null) return size;
+    for(int i=0;i<unknownenums.count;i+=2) {
+	size += getTagSize(ASTRuntime.Sort.Ast_enum,unknownenums.values[i])
+		+ getSize(ASTRuntime.Sort.Ast_enum,unknownenums.values[i+1]);
+    }
+    return size;
+}
+
 //////////////////////////////////////////////////
 // Miscellaneous utilities
 
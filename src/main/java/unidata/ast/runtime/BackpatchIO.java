@@ -0,0 +1,282 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/* Write-only AbstractIO used by the backpatching write mode
+   of ASTRuntime (see ASTRuntime.setBackpatch).
+   When a submessage is started, begin() reserves a slot wide
+   enough for the largest possible size prefix and the body is
+   then written after it; end() fills in the now known size.
+   Output is kept as a list of runs over a set of chunks, so a
+   prefix narrower than its slot is compacted simply by
+   shortening the slot's run; nothing is ever moved.
+   Once the outermost open submessage is ended, the runs are
+   passed on to the target AbstractIO in order. Output that is
+   not inside any submessage goes straight to the target.
+*/
+
+public class BackpatchIO extends AbstractIO
+{
+
+/* Should be exactly eight characters long */
+static final char BYTEIO_UIDSTRING[] = new char[]{'b','a','c','k','p','a','t','c'};
+
+static final int DFALTCHUNKSIZE = 8192; //bytes
+static final int INITRUNS = 64;
+static final int INITDEPTH = 16;
+
+//////////////////////////////////////////////////
+// Instance fields
+
+AbstractIO target = null;
+
+// Chunks of buffered output; chunks[0..nchunks) are in use
+// and are kept for reuse once their content has been passed on.
+byte[][] chunks = new byte[4][];
+int nchunks = 0;
+byte[] chunk = null; // == chunks[nchunks-1]
+int chunkpos = 0;
+int chunksize = DFALTCHUNKSIZE;
+
+// Runs, in output order; run i is runbufs[i][runstarts[i]..+runlens[i])
+byte[][] runbufs = new byte[INITRUNS][];
+int[] runstarts = new int[INITRUNS];
+int[] runlens = new int[INITRUNS];
+int nruns = 0;
+
+// Open submessages: the run holding the size slot and
+// the value of total when the submessage was begun.
+int[] slots = new int[INITDEPTH];
+long[] starts = new long[INITDEPTH];
+int depth = 0;
+
+long total = 0; // bytes buffered so far (excluding unused slot space)
+
+byte[] flushbuffer = null;
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+BackpatchIO(AbstractIO target)
+{
+    super();
+    this.target = target;
+    setMode(IOmode.Ast_write);
+}
+
+//////////////////////////////////////////////////
+// set/get
+
+public AbstractIO getTarget() {return target;}
+
+/* Drops anything pending for the old target */
+public void
+setTarget(AbstractIO target)
+{
+    discard();
+    this.target = target;
+}
+
+/* Number of currently open submessages */
+public int getDepth() {return depth;}
+
+//////////////////////////////////////////////////
+// Backpatching
+
+/* Reserve width bytes for the size prefix of a new submessage */
+public void
+begin(int width)
+    throws IOException
+{
+    if(chunk == null || chunk.length - chunkpos < width)
+	newchunk();
+    if(depth == slots.length) {
+	slots = Arrays.copyOf(slots,2*depth);
+	starts = Arrays.copyOf(starts,2*depth);
+    }
+    addrun(chunk,chunkpos,0);
+    slots[depth] = nruns - 1;
+    starts[depth] = total;
+    depth++;
+    chunkpos += width;
+}
+
+/* Size of the body of the innermost open submessage */
+public int
+getBodySize()
+    throws IOException
+{
+    if(depth == 0)
+	throw new IOException("BackpatchIO: no open message");
+    long size = total - starts[depth-1];
+    if(size > Integer.MAX_VALUE)
+	throw new IOException("BackpatchIO: message too large: "+size);
+    return (int)size;
+}
+
+/* Close the innermost submessage by copying its encoded size
+   prefix, prefix[0..len), into the slot reserved by begin().
+*/
+public void
+end(byte[] prefix, int len)
+    throws IOException
+{
+    if(depth == 0)
+	throw new IOException("BackpatchIO: no open message");
+    int slot = slots[--depth];
+    System.arraycopy(prefix,0,runbufs[slot],runstarts[slot],len);
+    runlens[slot] = len;
+    total += len;
+    if(depth == 0) drainruns();
+}
+
+/* Forget all pending output, e.g. after a failed write */
+public void
+discard()
+{
+    nruns = 0;
+    depth = 0;
+    total = 0;
+    nchunks = 0;
+    chunk = null;
+    chunkpos = 0;
+}
+
+void
+newchunk()
+{
+    if(nchunks == chunks.length)
+	chunks = Arrays.copyOf(chunks,2*nchunks);
+    if(chunks[nchunks] == null)
+	chunks[nchunks] = new byte[chunksize];
+    chunk = chunks[nchunks++];
+    chunkpos = 0;
+}
+
+void
+addrun(byte[] buf, int start, int len)
+{
+    if(nruns == runbufs.length) {
+	runbufs = Arrays.copyOf(runbufs,2*nruns);
+	runstarts = Arrays.copyOf(runstarts,2*nruns);
+	runlens = Arrays.copyOf(runlens,2*nruns);
+    }
+    runbufs[nruns] = buf;
+    runstarts[nruns] = start;
+    runlens[nruns] = len;
+    nruns++;
+}
+
+/* Pass all runs to the target, coalescing them into whole chunks */
+void
+drainruns()
+    throws IOException
+{
+    if(flushbuffer == null) flushbuffer = new byte[chunksize];
+    int pos = 0;
+    for(int i=0;i<nruns;i++) {
+	int start = runstarts[i];
+	int len = runlens[i];
+	while(len > 0) {
+	    if(pos == flushbuffer.length) {
+		target.write(pos,flushbuffer);
+		pos = 0;
+	    }
+	    int count = flushbuffer.length - pos;
+	    if(count > len) count = len;
+	    System.arraycopy(runbufs[i],start,flushbuffer,pos,count);
+	    pos += count;
+	    start += count;
+	    len -= count;
+	}
+	runbufs[i] = null;
+    }
+    if(pos > 0) target.write(pos,flushbuffer);
+    discard();
+}
+
+//////////////////////////////////////////////////
+// AbstractIO overrides
+
+public void
+write(int len, byte[] buf)
+    throws IOException
+{
+    if(depth == 0) {
+	target.write(len,buf);
+	return;
+    }
+    int pos = 0;
+    total += len;
+    while(len > 0) {
+	if(chunk == null || chunkpos == chunk.length)
+	    newchunk();
+	int count = chunk.length - chunkpos;
+	if(count > len) count = len;
+	System.arraycopy(buf,pos,chunk,chunkpos,count);
+	extendrun(count);
+	pos += count;
+	len -= count;
+    }
+}
+
+/* Strings that fit in the current chunk are encoded straight into it */
+public void
+writeutf8(String s, int len)
+    throws IOException
+{
+    if(depth == 0) {
+	target.writeutf8(s,len);
+	return;
+    }
+    if(chunk == null || chunk.length - chunkpos < len) {
+	if(len > chunksize) {
+	    super.writeutf8(s,len);
+	    return;
+	}
+	newchunk();
+    }
+    Utf8.encode(s,chunk,chunkpos);
+    total += len;
+    extendrun(len);
+}
+
+/* Account for count new bytes at chunk[chunkpos..] */
+void
+extendrun(int count)
+{
+    int last = nruns - 1;
+    if(runbufs[last] == chunk && runstarts[last] + runlens[last] == chunkpos)
+	runlens[last] += count; // extend the current run
+    else
+	addrun(chunk,chunkpos,count);
+    chunkpos += count;
+}
+
+public void
+flush()
+    throws IOException
+{
+    if(depth > 0)
+	throw new IOException("BackpatchIO.flush: unterminated message");
+    target.flush();
+}
+
+/* The target is owned by the caller and is not closed */
+public void
+close()
+    throws IOException
+{
+    flush();
+}
+
+}
@@ -18,6 +18,15 @@ public class ByteIO extends AbstractIO
 /* Should be exactly eight characters long */
 static final char BYTEIO_UIDSTRING[] = new char[]{'b','y','t','e','i','o',' ',' '};
 
+//////////////////////////////////////////////////
+// Instance fields
+
+int base = 0; // offset of position 0 in a wrapped byte array
+java.nio.ByteBuffer source = null; // non-array ByteBuffer input
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
 // Read constructor(s)
 
 public
@@ -27,6 +36,52 @@ ByteIO() // only if writing
     this(new ByteArrayOutputStream());
 }
 
+/* Decode directly from an existing byte array (or slice of one)
+   without copying it through an InputStream.
+*/
+
+public
+ByteIO(byte[] buf)
+    throws IOException
+{
+    this(buf,0,(buf == null ? 0 : buf.length));
+}
+
+public
+ByteIO(byte[] buf, int offset, int len)
+    throws IOException
+{
+    super();
+    if(buf == null)
+        throw new IOException("ByteIO: no buffer specified");
+    if(offset < 0 || len < 0 || offset + len > buf.length)
+        throw new IOException("ByteIO: illegal buffer slice");
+    setMode(IOmode.Ast_read);
+    wrap(buf,offset,len);
+    base = offset;
+}
+
+/* Decode from the remaining contents of a java.nio.ByteBuffer;
+   a heap buffer is used in place, a direct buffer
+   is copied in chunks as decoding proceeds.
+   The ByteBuffer's own position is not changed.
+*/
+
+public
+ByteIO(java.nio.ByteBuffer buf)
+    throws IOException
+{
+    super();
+    if(buf == null)
+        throw new IOException("ByteIO: no buffer specified");
+    setMode(IOmode.Ast_read);
+    if(buf.hasArray()) {
+	base = buf.arrayOffset() + buf.position();
+	wrap(buf.array(),base,buf.remaining());
+    } else
+	source = buf.slice();
+}
+
 public
 ByteIO(Object stream)
     throws IOException
@@ -40,6 +95,85 @@ ByteIO(Object stream)
 	setStream((OutputStream)stream);
 }
 
+//////////////////////////////////////////////////
+// Positional access; only for byte array or ByteBuffer input
+
+/* Return the offset of the next byte to be read,
+   relative to the start of the slice or ByteBuffer.
+*/
+public int
+getPosition()
+    throws IOException
+{
+    if(wrapped) return rpos - base;
+    if(source != null) return source.position() - (rlimit - rpos);
+    throw new IOException("ByteIO: positional access requires buffer input");
+}
+
+/* Move the read position; avail is adjusted so that
+   any enclosing mark() limit is still honored.
+*/
+public void
+setPosition(int pos)
+    throws IOException
+{
+    int delta = getPosition() - pos;
+    int size = (wrapped ? rlimit - base : source.limit());
+    if(pos < 0 || pos > size || avail + delta < 0)
+        throw new IOException("ByteIO: illegal position "+pos);
+    avail += delta;
+    if(wrapped)
+	rpos = base + pos;
+    else {
+	source.position(pos);
+	rpos = rlimit = 0;
+    }
+}
+
+/* Strings are encoded straight into the write buffer */
+public void
+writeutf8(String s, int len)
+    throws IOException
+{
+    writeutf8buffered(s,len);
+}
+
+protected long
+skipinput(long n)
+    throws IOException
+{
+    if(source == null) return super.skipinput(n);
+    int count = source.remaining();
+    if(count > n) count = (int)n;
+    source.position(source.position() + count);
+    return count;
+}
+
+protected int
+fill(byte[] buf, int offset, int len)
+    throws IOException
+{
+    if(source == null) return super.fill(buf,offset,len);
+    if(!source.hasRemaining()) return -1;
+    if(len > source.remaining()) len = source.remaining();
+    source.get(buf,offset,len);
+    return len;
+}
+
+/* Return the bytes written so far when the output
+   is the default ByteArrayOutputStream; flushes
+   any buffered output first.
+*/
+public byte[]
+getContent()
+    throws IOException
+{
+    if(!(ostream instanceof ByteArrayOutputStream))
+        throw new IOException("ByteIO: output is not a byte array");
+    flush();
+    return ((ByteArrayOutputStream)ostream).toByteArray();
+}
+
 
 }
 
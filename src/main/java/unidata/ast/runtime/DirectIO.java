@@ -0,0 +1,188 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Write-only AbstractIO that encodes into a chain of direct
+   (off-heap) java.nio.ByteBuffer segments taken from a pool.
+   Growing the output just appends another segment, so nothing
+   is ever reallocated or copied on the java heap.
+   The result can be handed to any GatheringByteChannel
+   (e.g. a FileChannel or SocketChannel) with writeTo().
+*/
+
+public class DirectIO extends AbstractIO
+{
+
+/* Should be exactly eight characters long */
+static final char BYTEIO_UIDSTRING[] = new char[]{'d','i','r','e','c','t',' ',' '};
+
+static final int DFALTSEGMENTSIZE = (1<<20); // 1 Mb
+static final int DFALTMAXPOOLED = 64; // segments
+
+//////////////////////////////////////////////////
+// Pool of reusable direct segments; may be shared across threads.
+
+static public class Pool
+{
+    int segmentsize;
+    int maxpooled;
+    ConcurrentLinkedQueue<java.nio.ByteBuffer> free
+	= new ConcurrentLinkedQueue<java.nio.ByteBuffer>();
+    AtomicInteger nfree = new AtomicInteger(0);
+
+    public Pool()
+    {
+	this(DFALTSEGMENTSIZE,DFALTMAXPOOLED);
+    }
+
+    public Pool(int segmentsize, int maxpooled)
+    {
+	if(segmentsize < MAXJTYPESIZE) segmentsize = MAXJTYPESIZE;
+	this.segmentsize = segmentsize;
+	this.maxpooled = maxpooled;
+    }
+
+    public int getSegmentSize() {return segmentsize;}
+
+    public java.nio.ByteBuffer
+    acquire()
+    {
+	java.nio.ByteBuffer segment = free.poll();
+	if(segment == null)
+	    return java.nio.ByteBuffer.allocateDirect(segmentsize);
+	nfree.decrementAndGet();
+	segment.clear();
+	return segment;
+    }
+
+    public void
+    release(java.nio.ByteBuffer segment)
+    {
+	if(segment.capacity() != segmentsize) return;
+	if(nfree.incrementAndGet() > maxpooled) {
+	    nfree.decrementAndGet(); // let the gc have it
+	    return;
+	}
+	free.offer(segment);
+    }
+}
+
+static final Pool defaultpool = new Pool();
+
+//////////////////////////////////////////////////
+// Instance fields
+
+Pool pool = null;
+List<java.nio.ByteBuffer> segments = new ArrayList<java.nio.ByteBuffer>();
+java.nio.ByteBuffer current = null; // == last segment
+long size = 0; // total bytes written
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+DirectIO()
+{
+    this(defaultpool);
+}
+
+public
+DirectIO(Pool pool)
+{
+    super();
+    this.pool = (pool == null ? defaultpool : pool);
+    setMode(IOmode.Ast_write);
+}
+
+//////////////////////////////////////////////////
+// Accessors
+
+/* Total number of bytes written so far */
+public long getSize() {return size;}
+
+/* Return read-only views of the written segments,
+   each positioned over its valid bytes.
+*/
+public java.nio.ByteBuffer[]
+getSegments()
+{
+    java.nio.ByteBuffer[] views = new java.nio.ByteBuffer[segments.size()];
+    for(int i=0;i<views.length;i++) {
+	java.nio.ByteBuffer view = segments.get(i).duplicate();
+	view.flip();
+	views[i] = view.asReadOnlyBuffer();
+    }
+    return views;
+}
+
+/* Write the whole content to the channel using gathering writes;
+   return the number of bytes written.
+*/
+public long
+writeTo(GatheringByteChannel channel)
+    throws IOException
+{
+    java.nio.ByteBuffer[] views = getSegments();
+    long total = 0;
+    int first = 0;
+    while(total < size) {
+	total += channel.write(views,first,views.length - first);
+	while(first < views.length && !views[first].hasRemaining())
+	    first++;
+    }
+    return total;
+}
+
+/* Return all segments to the pool and start over */
+public void
+clear()
+{
+    for(java.nio.ByteBuffer segment: segments)
+	pool.release(segment);
+    segments.clear();
+    current = null;
+    size = 0;
+}
+
+//////////////////////////////////////////////////
+// AbstractIO overrides
+
+public void
+write(int len, byte[] buf)
+    throws IOException
+{
+    int pos = 0;
+    while(len > 0) {
+	if(current == null || !current.hasRemaining()) {
+	    current = pool.acquire();
+	    segments.add(current);
+	}
+	int count = current.remaining();
+	if(count > len) count = len;
+	current.put(buf,pos,count);
+	pos += count;
+	len -= count;
+	size += count;
+    }
+}
+
+public void
+close()
+    throws IOException
+{
+    clear();
+}
+
+}
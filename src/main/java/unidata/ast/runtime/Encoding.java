@@ -74,11 +74,22 @@ static public class Fieldmode {
 
 static public final Charset utf8 = Charset.forName("utf-8");
 
+/* Creates instances of an Encoding; registered with
+   ASTRuntime.registerEncoding so that no reflection
+   is needed to construct a runtime.
+*/
+static public interface Factory
+{
+    public Encoding newEncoding() throws ASTException;
+}
+
 //////////////////////////////////////////////////
 // Instance fields
 
 AbstractIO io = null;
 
+StringCache strings = null; // see ASTRuntime.setStringCache
+
 //////////////////////////////////////////////////
 // Constructor(s)
 
@@ -125,6 +136,15 @@ unmark()
     io.unmark();
 }
 
+/* Pass over n input bytes without copying them (see AbstractIO.skip) */
+void
+skip_bytes(int n)
+    throws IOException
+{
+    if(!io.skip(n))
+	throw new ASTException("skip_field: too few bytes");
+}
+
 //////////////////////////////////////////////////
 /* Given an unknown field, skip past it */
 
@@ -169,6 +189,13 @@ abstract boolean read_tag(int[] wiretype, int[] fieldno) throws IOException;
 abstract void write_size(int size) throws IOException;
 abstract int read_size() throws IOException;
 
+/* Used by the backpatching writer: encode a size prefix into buf
+   and return its length, and give the most bytes any size
+   prefix can occupy.
+*/
+abstract int encode_size(int size, byte[] buf);
+abstract int getMaxSizePrefix();
+
 //////////////////////////////////////////////////
 
 abstract double read_primitive_double(int sort) throws IOException;
@@ -8,6 +8,7 @@
 package unidata.ast.runtime;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 
 public class FileIO extends AbstractIO
 {
@@ -56,5 +57,30 @@ construct(Object stream)
 	setStream((OutputStream)stream);
 }
 
+/* Strings are encoded straight into the write buffer */
+public void
+writeutf8(String s, int len)
+    throws IOException
+{
+    writeutf8buffered(s,len);
+}
+
+/* Skip by moving the file position of a FileInputStream,
+   never beyond the end of the file.
+*/
+protected long
+skipinput(long n)
+    throws IOException
+{
+    if(!(istream instanceof FileInputStream))
+	return super.skipinput(n);
+    FileChannel channel = ((FileInputStream)istream).getChannel();
+    long pos = channel.position();
+    long left = channel.size() - pos;
+    if(n > left) n = left;
+    if(n > 0) channel.position(pos + n);
+    return (n > 0 ? n : 0);
+}
+
 }
 
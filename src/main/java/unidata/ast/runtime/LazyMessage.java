@@ -0,0 +1,187 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/* On-demand decoding of the fields of a message.
+   The constructor skims the message, reading only the tags
+   and passing over the values with skip_field(), and records
+   the input range of every field. A field is then decoded only
+   when load() is first called for it; until then it keeps its
+   default value. Adjacent occurrences of the same field (e.g.
+   the elements of an unpacked repeated field) share one range.
+   The input must allow positional access, i.e. the runtime's
+   io must be a ByteIO over a byte[] or a java.nio.ByteBuffer
+   (which may be a MappedByteBuffer).
+*/
+
+public class LazyMessage<T extends AbstractMessage>
+{
+
+static final int INITFIELDS = 16;
+
+//////////////////////////////////////////////////
+// Instance fields
+
+T msg = null;
+ByteIO io = null;
+
+// Range i holds fieldno fields[i] in input bytes [starts[i]..ends[i])
+int[] fields = new int[INITFIELDS];
+int[] starts = new int[INITFIELDS];
+int[] ends = new int[INITFIELDS];
+boolean[] loaded = new boolean[INITFIELDS];
+int nranges = 0;
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+/* Skim msg from the current position of its runtime's io
+   to the end of the input (or of the current mark).
+*/
+public
+LazyMessage(T msg)
+    throws IOException
+{
+    if(msg.rt == null || !(msg.rt.getIO() instanceof ByteIO))
+	throw new ASTException("LazyMessage: requires ByteIO input");
+    this.msg = msg;
+    this.io = (ByteIO)msg.rt.getIO();
+    msg.clear();
+    msg.cachedsize = -1;
+    skim();
+}
+
+//////////////////////////////////////////////////
+// Accessors
+
+/* The message; only fields that have been loaded are valid */
+public T getMessage() {return msg;}
+
+/* Is the field present in the input? No decoding is done */
+public boolean
+contains(int fieldno)
+{
+    for(int i=0;i<nranges;i++)
+	if(fields[i] == fieldno) return true;
+    return false;
+}
+
+public boolean
+isLoaded(int fieldno)
+{
+    for(int i=0;i<nranges;i++)
+	if(fields[i] == fieldno && !loaded[i]) return false;
+    return true;
+}
+
+/* Number of bytes that the field occupies in the input */
+public int
+getFieldSize(int fieldno)
+{
+    int size = 0;
+    for(int i=0;i<nranges;i++)
+	if(fields[i] == fieldno) size += ends[i] - starts[i];
+    return size;
+}
+
+//////////////////////////////////////////////////
+// Skim and load
+
+void
+skim()
+    throws IOException
+{
+    int[] wiretype = new int[1];
+    int[] fieldno = new int[1];
+    for(;;) {
+	int start = io.getPosition();
+	if(!msg.read_tag(wiretype,fieldno)) break;
+	msg.skip_field(wiretype[0],fieldno[0]);
+	int end = io.getPosition();
+	if(nranges > 0 && fields[nranges-1] == fieldno[0]) {
+	    ends[nranges-1] = end; // coalesce with the previous occurrence
+	    continue;
+	}
+	if(nranges == fields.length) {
+	    fields = Arrays.copyOf(fields,2*nranges);
+	    starts = Arrays.copyOf(starts,2*nranges);
+	    ends = Arrays.copyOf(ends,2*nranges);
+	    loaded = Arrays.copyOf(loaded,2*nranges);
+	}
+	fields[nranges] = fieldno[0];
+	starts[nranges] = start;
+	ends[nranges] = end;
+	nranges++;
+    }
+}
+
+/* Decode the field, if not already done, and return the message */
+public T
+load(int fieldno)
+    throws IOException
+{
+    int first = -1;
+    int count = 0;
+    int size = 0;
+    for(int i=0;i<nranges;i++) {
+	if(fields[i] != fieldno || loaded[i]) continue;
+	if(first < 0) first = i;
+	count++;
+	size += ends[i] - starts[i];
+    }
+    if(count == 0) return msg;
+    int saved = io.getPosition();
+    try {
+	if(count == 1) {
+	    // Decode in place from the input
+	    io.setPosition(starts[first]);
+	    msg.mark(size);
+	    msg.read_fields();
+	    msg.unmark();
+	} else {
+	    // Scattered occurrences must be decoded in a single
+	    // read_fields() so that repeated values accumulate
+	    byte[] buf = new byte[size];
+	    int pos = 0;
+	    for(int i=first;i<nranges;i++) {
+		if(fields[i] != fieldno || loaded[i]) continue;
+		io.setPosition(starts[i]);
+		int len = ends[i] - starts[i];
+		if(!msg.read(buf,pos,len))
+		    throw new IOException("LazyMessage: truncated field "+fieldno);
+		pos += len;
+	    }
+	    msg.rt.setIO(new ByteIO(buf));
+	    try {
+		msg.read_fields();
+	    } finally {
+		msg.rt.setIO(io);
+	    }
+	}
+    } finally {
+	io.setPosition(saved);
+    }
+    for(int i=first;i<nranges;i++)
+	if(fields[i] == fieldno) loaded[i] = true;
+    return msg;
+}
+
+/* Decode all the fields not yet loaded */
+public T
+loadAll()
+    throws IOException
+{
+    for(int i=0;i<nranges;i++)
+	if(!loaded[i]) load(fields[i]);
+    return msg;
+}
+
+}
@@ -0,0 +1,206 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/* Read-only AbstractIO that pulls its input from a memory mapped
+   view of a file. A single MappedByteBuffer is limited to 2 Gb,
+   so the file is mapped a window at a time and the window
+   is moved forward as the decoder consumes it.
+   The decoder reads straight from the mapped window; the
+   AbstractIO read buffer is never used, so the input is not
+   first copied onto the heap. Packed fixed size arrays are
+   converted directly from the window (see slice()).
+   The avail/mark/unmark machinery is inherited unchanged
+   from AbstractIO.
+*/
+
+public class MappedFileIO extends AbstractIO
+{
+
+/* Should be exactly eight characters long */
+static final char BYTEIO_UIDSTRING[] = new char[]{'m','a','p','p','e','d',' ',' '};
+
+/* Default size of a mapped window */
+static final int DFALTWINDOWSIZE = (1<<26); // 64 Mb
+
+//////////////////////////////////////////////////
+// Instance fields
+
+RandomAccessFile raf = null;
+FileChannel channel = null;
+long filesize = 0;
+
+MappedByteBuffer window = null;
+long windowstart = 0; // file offset of window position 0
+int windowsize = DFALTWINDOWSIZE;
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+MappedFileIO(File file)
+    throws IOException
+{
+    super();
+    if(file == null)
+	throw new IOException("MappedFileIO: null file argument");
+    raf = new RandomAccessFile(file,"r");
+    channel = raf.getChannel();
+    filesize = channel.size();
+    setMode(IOmode.Ast_read);
+}
+
+//////////////////////////////////////////////////
+// set/get
+
+public long getFileSize() {return filesize;}
+
+public int getWindowSize() {return windowsize;}
+
+public void setWindowSize(int size)
+{
+    if(size < MAXJTYPESIZE) size = MAXJTYPESIZE;
+    this.windowsize = size;
+}
+
+//////////////////////////////////////////////////
+// AbstractIO overrides
+
+/* Map the next window of the file starting at the given offset;
+   return false if there is nothing left to map.
+*/
+boolean
+remap(long offset)
+    throws IOException
+{
+    window = null;
+    windowstart = offset; // where the next window will start
+    if(offset >= filesize) return false;
+    long len = filesize - offset;
+    if(len > windowsize) len = windowsize;
+    window = channel.map(FileChannel.MapMode.READ_ONLY,offset,len);
+    windowstart = offset;
+    return true;
+}
+
+/* Make sure the window has bytes remaining, mapping the next
+   window if needed; return false at the end of the file.
+*/
+boolean
+advance()
+    throws IOException
+{
+    if(channel == null) return false;
+    if(window != null && window.hasRemaining()) return true;
+    long next = (window == null ? windowstart : windowstart + window.limit());
+    return remap(next);
+}
+
+/* The read buffer is not used (see read() and readbyte()) */
+boolean
+refill()
+    throws IOException
+{
+    return false;
+}
+
+boolean
+atEOF()
+    throws IOException
+{
+    return (avail <= 0 || !advance());
+}
+
+public boolean
+read(byte[] buf, int offset, int len)
+    throws IOException
+{
+    if(len > avail) return false;
+    int left = len;
+    int pos = offset;
+    while(left > 0 && advance()) {
+	int count = window.remaining();
+	if(count > left) count = left;
+	window.get(buf,pos,count);
+	left -= count;
+	pos += count;
+	avail -= count;
+    }
+    return (left == 0);
+}
+
+public int
+readbyte()
+    throws IOException
+{
+    if(avail <= 0 || !advance()) return -1;
+    avail--;
+    return (window.get() & 0xff);
+}
+
+/* The next n bytes as a view of the window, unless they
+   cross into the next window.
+*/
+java.nio.ByteBuffer
+slice(int n)
+    throws IOException
+{
+    if(n > avail || !advance() || window.remaining() < n) return null;
+    java.nio.ByteBuffer view = window.slice();
+    view.limit(n);
+    window.position(window.position() + n);
+    avail -= n;
+    return view;
+}
+
+/* Skipping just moves the window position, or discards
+   the window if the new position lies beyond it.
+*/
+protected long
+skipinput(long n)
+    throws IOException
+{
+    if(channel == null) return 0;
+    long current = (window == null ? windowstart : windowstart + window.position());
+    long target = current + n;
+    if(target > filesize) target = filesize;
+    if(window != null && target <= windowstart + window.limit())
+	window.position((int)(target - windowstart));
+    else {
+	window = null;
+	windowstart = target;
+    }
+    return target - current;
+}
+
+public void
+write(int len, byte[] buf)
+    throws IOException
+{
+    throw new IOException("MappedFileIO: file is read-only");
+}
+
+public void
+close()
+    throws IOException
+{
+    super.close();
+    window = null;
+    if(channel != null) channel.close();
+    if(raf != null) raf.close();
+    channel = null;
+    raf = null;
+}
+
+}
@@ -0,0 +1,332 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* Decode the records of a record file (see RecordWriter) on all
+   cores. The record offsets are found first by a sequential scan
+   that reads only the size prefixes; the records are then split
+   at record boundaries into batches that are decoded by the
+   tasks of a ForkJoinPool. Each task decodes its batch with a
+   runtime of its own, taken from an ASTRuntime.Pool and returned
+   when the batch is done, so every task has its own Encoding
+   instance and the runtimes of the threads that run the tasks
+   (see ASTRuntime.forThread()) are left alone.
+   Results are always delivered in record order.
+*/
+
+public class ParallelRecordReader
+{
+
+static final int DFALTBATCHSIZE = (1<<20); // bytes per decode task
+static final int WINDOWBATCHES = 4; // batches per thread held by forEach()
+
+/* Receives the decoded records, in order, from forEach() */
+static public interface Callback<T extends AbstractMessage>
+{
+    public void record(long index, T msg) throws IOException;
+}
+
+//////////////////////////////////////////////////
+// Instance fields
+
+ASTRuntime.Encoder coder = null;
+
+// Exactly one of the following is the input
+byte[] array = null;
+int arraybase = 0;
+int arraylen = 0;
+java.nio.ByteBuffer buffer = null;
+File file = null;
+RandomAccessFile raf = null;
+FileChannel channel = null;
+
+ForkJoinPool pool = null;
+int batchsize = DFALTBATCHSIZE;
+ASTRuntime.Pool runtimes = null; // for the decode tasks
+
+// offsets[i] is the offset of record i and offsets[nrecords]
+// is the end of the last record; null until scanned.
+long[] offsets = null;
+int nrecords = 0;
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+ParallelRecordReader(ASTRuntime.Encoder coder, byte[] buf)
+    throws IOException
+{
+    this(coder,buf,0,(buf == null ? 0 : buf.length));
+}
+
+public
+ParallelRecordReader(ASTRuntime.Encoder coder, byte[] buf, int offset, int len)
+    throws IOException
+{
+    this(coder);
+    if(buf == null)
+	throw new IOException("ParallelRecordReader: no buffer specified");
+    if(offset < 0 || len < 0 || offset + len > buf.length)
+	throw new IOException("ParallelRecordReader: illegal buffer slice");
+    array = buf;
+    arraybase = offset;
+    arraylen = len;
+}
+
+public
+ParallelRecordReader(ASTRuntime.Encoder coder, java.nio.ByteBuffer buf)
+    throws IOException
+{
+    this(coder);
+    if(buf == null)
+	throw new IOException("ParallelRecordReader: no buffer specified");
+    buffer = buf.slice();
+}
+
+/* Each batch of the file is separately memory mapped */
+public
+ParallelRecordReader(ASTRuntime.Encoder coder, File file)
+    throws IOException
+{
+    this(coder);
+    if(file == null)
+	throw new IOException("ParallelRecordReader: null file argument");
+    this.file = file;
+    raf = new RandomAccessFile(file,"r");
+    channel = raf.getChannel();
+}
+
+ParallelRecordReader(ASTRuntime.Encoder coder)
+    throws IOException
+{
+    if(coder == null)
+	throw new ASTException("No encoding specified");
+    this.coder = coder;
+    this.runtimes = new ASTRuntime.Pool(coder);
+}
+
+//////////////////////////////////////////////////
+// set/get
+
+/* The default is the common pool shared by the whole JVM */
+public void setPool(ForkJoinPool pool) {this.pool = pool;}
+
+public ForkJoinPool
+getPool()
+{
+    if(pool == null) pool = ForkJoinPool.commonPool();
+    return pool;
+}
+
+/* Approximate number of bytes decoded by each task */
+public void
+setBatchSize(int size)
+{
+    if(size < 1) size = 1;
+    this.batchsize = size;
+}
+
+public int getBatchSize() {return batchsize;}
+
+/* Number of records; scans the input if necessary */
+public int
+getCount()
+    throws IOException
+{
+    scan();
+    return nrecords;
+}
+
+/* Offsets of the records, as would be returned by RecordWriter,
+   followed by the offset just past the last record.
+*/
+public long[]
+getOffsets()
+    throws IOException
+{
+    scan();
+    return Arrays.copyOf(offsets,nrecords+1);
+}
+
+//////////////////////////////////////////////////
+// Input
+
+/* Sequential view of all the input */
+AbstractIO
+openAll()
+    throws IOException
+{
+    if(array != null)
+	return new ByteIO(array,arraybase,arraylen);
+    if(buffer != null)
+	return new ByteIO(buffer.duplicate());
+    return new MappedFileIO(file);
+}
+
+/* View of the input bytes [start..end) */
+AbstractIO
+openRange(long start, long end)
+    throws IOException
+{
+    long len = end - start;
+    if(len > Integer.MAX_VALUE)
+	throw new IOException("ParallelRecordReader: batch too large: "+len);
+    if(array != null)
+	return new ByteIO(array,arraybase+(int)start,(int)len);
+    if(buffer != null) {
+	java.nio.ByteBuffer view = buffer.duplicate();
+	view.position((int)start);
+	view.limit((int)end);
+	return new ByteIO(view);
+    }
+    return new ByteIO(channel.map(FileChannel.MapMode.READ_ONLY,start,len));
+}
+
+/* Find the record offsets, reading only the size prefixes */
+void
+scan()
+    throws IOException
+{
+    if(offsets != null) return;
+    AbstractIO io = openAll();
+    RecordReader reader = new RecordReader(new ASTRuntime(coder,io));
+    long[] list = new long[1024];
+    int n = 0;
+    while(reader.next()) {
+	if(n + 1 == list.length) list = Arrays.copyOf(list,2*n);
+	list[n++] = reader.getOffset();
+	reader.skip();
+    }
+    list[n] = reader.position;
+    if(io instanceof MappedFileIO) io.close();
+    offsets = list;
+    nrecords = n;
+}
+
+//////////////////////////////////////////////////
+// Decoding
+
+/* Decode records [lo..hi) into results[lo-base..hi-base) */
+class DecodeTask<T extends AbstractMessage> extends RecursiveAction
+{
+    static final long serialVersionUID = 1L;
+
+    RecordReader.Factory<T> factory;
+    Object[] results;
+    int base, lo, hi;
+
+    DecodeTask(RecordReader.Factory<T> factory, Object[] results, int base, int lo, int hi)
+    {
+	this.factory = factory;
+	this.results = results;
+	this.base = base;
+	this.lo = lo;
+	this.hi = hi;
+    }
+
+    protected void
+    compute()
+    {
+	if(hi - lo > 1 && offsets[hi] - offsets[lo] > batchsize) {
+	    int mid = (lo + hi) >>> 1;
+	    invokeAll(new DecodeTask<T>(factory,results,base,lo,mid),
+		      new DecodeTask<T>(factory,results,base,mid,hi));
+	    return;
+	}
+	ASTRuntime rt = null;
+	try {
+	    rt = runtimes.acquire(openRange(offsets[lo],offsets[hi]));
+	    RecordReader reader = new RecordReader(rt);
+	    for(int i=lo;i<hi;i++) {
+		if(!reader.next())
+		    throw new IOException("ParallelRecordReader: missing record "+i);
+		results[i-base] = reader.read(factory.newMessage());
+	    }
+	} catch (IOException ioe) {
+	    throw new ASTRuntimeException(ioe.getMessage(),ioe);
+	} finally {
+	    runtimes.release(rt);
+	}
+    }
+}
+
+/* Decode records [lo..hi) in parallel */
+<T extends AbstractMessage> Object[]
+decode(RecordReader.Factory<T> factory, int lo, int hi)
+    throws IOException
+{
+    Object[] results = new Object[hi - lo];
+    if(hi == lo) return results;
+    try {
+	getPool().invoke(new DecodeTask<T>(factory,results,lo,lo,hi));
+    } catch (ASTRuntimeException re) {
+	// A failure in another worker thread is rethrown by the pool
+	// as a copy wrapping the original, so look down the causes.
+	for(Throwable t=re.getCause();t != null;t=t.getCause()) {
+	    if(t instanceof IOException) throw (IOException)t;
+	}
+	throw re;
+    }
+    return results;
+}
+
+/* Decode all the records; the list is in record order */
+@SuppressWarnings("unchecked")
+public <T extends AbstractMessage> List<T>
+readAll(RecordReader.Factory<T> factory)
+    throws IOException
+{
+    scan();
+    return (List<T>)(List<?>)Arrays.asList(decode(factory,0,nrecords));
+}
+
+/* Decode all the records and pass them to callback in record
+   order, on the calling thread. Only a window of a few batches
+   per worker thread is held in memory at any time.
+*/
+@SuppressWarnings("unchecked")
+public <T extends AbstractMessage> void
+forEach(RecordReader.Factory<T> factory, Callback<T> callback)
+    throws IOException
+{
+    scan();
+    long windowsize = (long)batchsize * WINDOWBATCHES * getPool().getParallelism();
+    int lo = 0;
+    while(lo < nrecords) {
+	int hi = lo + 1;
+	while(hi < nrecords && offsets[hi+1] - offsets[lo] <= windowsize)
+	    hi++;
+	Object[] results = decode(factory,lo,hi);
+	for(int i=0;i<results.length;i++) {
+	    callback.record(lo+i,(T)results[i]);
+	    results[i] = null;
+	}
+	lo = hi;
+    }
+}
+
+public void
+close()
+    throws IOException
+{
+    if(channel != null) channel.close();
+    if(raf != null) raf.close();
+    channel = null;
+    raf = null;
+}
+
+}
@@ -0,0 +1,127 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.util.Arrays;
+
+/* The set of field numbers of a message type that a projected
+   read (see ASTRuntime.setProjection) should decode. A message
+   field may carry a nested Projection that applies to the fields
+   of the submessage; without one, the submessage is decoded whole.
+   Paths name nested fields by field number, so include(2,5) selects
+   field 5 of the submessage in field 2.
+   Lookups use a binary search over a sorted array, so testing
+   a field number never allocates.
+*/
+
+public class Projection
+{
+
+//////////////////////////////////////////////////
+// Instance fields
+
+int[] fieldnos = new int[0]; // sorted
+Projection[] nested = new Projection[0]; // null => whole field
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public Projection() {}
+
+/* Projection of the listed top-level fields */
+public
+Projection(int... fieldnos)
+{
+    for(int fieldno: fieldnos)
+	include(fieldno);
+}
+
+//////////////////////////////////////////////////
+// Building
+
+/* Include the field named by path; all but the last
+   element of the path must be message fields.
+*/
+public Projection
+include(int... path)
+{
+    if(path.length == 0)
+	throw new ASTRuntimeException("Projection: empty path");
+    Projection p = this;
+    for(int i=0;i<path.length;i++) {
+	int index = p.find(path[i]);
+	boolean last = (i == path.length - 1);
+	if(index >= 0) {
+	    if(p.nested[index] == null) break; // already whole
+	    if(last) {
+		p.nested[index] = null; // now wanted whole
+		break;
+	    }
+	    p = p.nested[index];
+	} else {
+	    Projection sub = (last ? null : new Projection());
+	    p.insert(-(index+1),path[i],sub);
+	    if(last) break;
+	    p = sub;
+	}
+    }
+    return this;
+}
+
+/* Include a message field, projecting its fields with sub */
+public Projection
+include(int fieldno, Projection sub)
+{
+    int index = find(fieldno);
+    if(index >= 0)
+	nested[index] = sub;
+    else
+	insert(-(index+1),fieldno,sub);
+    return this;
+}
+
+void
+insert(int index, int fieldno, Projection sub)
+{
+    int n = fieldnos.length;
+    fieldnos = Arrays.copyOf(fieldnos,n+1);
+    nested = Arrays.copyOf(nested,n+1);
+    System.arraycopy(fieldnos,index,fieldnos,index+1,n-index);
+    System.arraycopy(nested,index,nested,index+1,n-index);
+    fieldnos[index] = fieldno;
+    nested[index] = sub;
+}
+
+//////////////////////////////////////////////////
+// Lookup
+
+int
+find(int fieldno)
+{
+    return Arrays.binarySearch(fieldnos,fieldno);
+}
+
+public boolean
+contains(int fieldno)
+{
+    return find(fieldno) >= 0;
+}
+
+/* Projection for a message field; null if the field
+   is to be decoded whole or is not included at all.
+*/
+public Projection
+get(int fieldno)
+{
+    int index = find(fieldno);
+    return (index < 0 ? null : nested[index]);
+}
+
+public int[] getFieldNumbers() {return fieldnos.clone();}
+
+}
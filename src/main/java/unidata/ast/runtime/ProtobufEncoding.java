@@ -40,6 +40,7 @@ package unidata.ast.runtime;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.util.Arrays;
 
 import static unidata.ast.runtime.ASTRuntime.*;
 import static unidata.ast.runtime.ASTRuntime.Sort.*;
@@ -57,7 +58,7 @@ static public int wiretype(int sort)
 	    return Wiretype.Ast_32bit;
 	case Ast_double: case Ast_fixed64: case Ast_sfixed64:
 	    return Wiretype.Ast_64bit;
-	case Ast_string: case Ast_bytes: case Ast_message:
+	case Ast_string: case Ast_bytes: case Ast_packed: case Ast_message:
 	    return Wiretype.Ast_counted;
 	default:
 	}
@@ -103,6 +104,106 @@ readvarint(byte[] buffer)
     return readwirevalue(Wiretype.Ast_varint, buffer);
 }
 
+/* Read a varint of up to 32 bits. The fast path decodes
+   directly out of the io read buffer whenever a maximal
+   varint is known to be buffered and within avail, so there
+   is a single bounds check per value; otherwise (at the edges
+   of the buffer or of a marked region) fall back to reading
+   a byte at a time.
+*/
+
+int
+readvarint32()
+    throws IOException
+{
+    AbstractIO io = this.io;
+    int pos = io.rpos;
+    if(io.rlimit - pos < Sort.MAXVARINTSIZE || io.avail < Sort.MAXVARINTSIZE)
+	return (int)slowvarint();
+    byte[] buf = io.rbuffer;
+    int x;
+    if((x = buf[pos++]) >= 0) {
+	io.consume(1);
+	return x;
+    } else if((x ^= (buf[pos++] << 7)) < 0) {
+	x ^= (~0 << 7);
+    } else if((x ^= (buf[pos++] << 14)) >= 0) {
+	x ^= (~0 << 7) ^ (~0 << 14);
+    } else if((x ^= (buf[pos++] << 21)) < 0) {
+	x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21);
+    } else {
+	int y = buf[pos++];
+	x ^= y << 28;
+	x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21) ^ (~0 << 28);
+	// Negative int32 values are sign extended to 10 bytes;
+	// discard the upper bytes.
+	if(y < 0
+	   && buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0
+	   && buf[pos++] < 0 && buf[pos++] < 0)
+	    throw new ASTException("malformed varint");
+    }
+    io.consume(pos - io.rpos);
+    return x;
+}
+
+/* Read a varint of up to 64 bits; see readvarint32 */
+
+long
+readvarint64()
+    throws IOException
+{
+    AbstractIO io = this.io;
+    int pos = io.rpos;
+    if(io.rlimit - pos < Sort.MAXVARINTSIZE || io.avail < Sort.MAXVARINTSIZE)
+	return slowvarint();
+    byte[] buf = io.rbuffer;
+    long x;
+    int y;
+    if((y = buf[pos++]) >= 0) {
+	io.consume(1);
+	return y;
+    } else if((y ^= (buf[pos++] << 7)) < 0) {
+	x = y ^ (~0 << 7);
+    } else if((y ^= (buf[pos++] << 14)) >= 0) {
+	x = y ^ ((~0 << 7) ^ (~0 << 14));
+    } else if((y ^= (buf[pos++] << 21)) < 0) {
+	x = y ^ ((~0 << 7) ^ (~0 << 14) ^ (~0 << 21));
+    } else if((x = y ^ ((long)buf[pos++] << 28)) >= 0L) {
+	x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28);
+    } else if((x ^= ((long)buf[pos++] << 35)) < 0L) {
+	x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28)
+	     ^ (~0L << 35);
+    } else if((x ^= ((long)buf[pos++] << 42)) >= 0L) {
+	x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28)
+	     ^ (~0L << 35) ^ (~0L << 42);
+    } else if((x ^= ((long)buf[pos++] << 49)) < 0L) {
+	x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28)
+	     ^ (~0L << 35) ^ (~0L << 42) ^ (~0L << 49);
+    } else {
+	x ^= ((long)buf[pos++] << 56);
+	x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28)
+	     ^ (~0L << 35) ^ (~0L << 42) ^ (~0L << 49) ^ (~0L << 56);
+	if(x < 0L && buf[pos++] < 0L)
+	    throw new ASTException("malformed varint");
+    }
+    io.consume(pos - io.rpos);
+    return x;
+}
+
+/* Byte at a time varint decode for the buffer edges */
+
+long
+slowvarint()
+    throws IOException
+{
+    int len = readwirevalue(Wiretype.Ast_varint, valuebuffer);
+    if(len < 0)
+	throw new ASTException("too few bytes");
+    if(len == 0)
+	throw new ASTException("malformed varint");
+    return uint64_decode(len, valuebuffer);
+}
+
 /* Based on the wiretype, extract the proper number of bytes
    for an integer base value; return the length
    and place the bytes into the valuebuffer.
@@ -118,11 +219,13 @@ readwirevalue(int wiretype, byte[] buffer)
     switch (wiretype) {
     case Ast_varint:
         for(int i=0;i<buffer.length;i++) {
-	    if(!io.read(buffer, i, 1))  {
+	    int b = io.readbyte();
+	    if(b < 0)  {
                 count = -1; // eof
                 break;
             }
-	    if((0x80 & buffer[i]) == 0) {
+	    buffer[i] = (byte)b;
+	    if((0x80 & b) == 0) {
                 count = i+1;
                 break;
             }
@@ -137,8 +240,7 @@ readwirevalue(int wiretype, byte[] buffer)
         if(!io.read(buffer, 0,8)) count = -1;
 	break;
     case Ast_counted: /* get the count */
-        int len = readwirevalue(Ast_varint, buffer);
-	count = uint32_decode(len,buffer);
+	count = readvarint32();
 	break;
     default:
 	throw new ASTException("Unexpected wiretype: "+wiretype);
@@ -155,26 +257,19 @@ skip_field(int wiretype, int fieldno)
     int len;
     switch (wiretype) {
     case Wiretype.Ast_varint:
-        len = readvarint(valuebuffer);
+        readvarint64();
 	break;
     case Wiretype.Ast_32bit:
-        read(valuebuffer, 0,(len=4));
+        skip_bytes(4);
 	break;
     case Wiretype.Ast_64bit:
-	len = 8;
-        read(valuebuffer, 0,(len=8));
+        skip_bytes(8);
 	break;
     case Wiretype.Ast_counted:
-        len = readvarint(valuebuffer);
         /* get the count */
-	len = uint32_decode(len, valuebuffer);
+	len = readvarint32();
 	/* Now skip "len" bytes */
-	while(len > 0) {
-	    int count = (len > valuebuffer.length? valuebuffer.length:len);
-	    if(!read(valuebuffer, 0,count))
-		throw new ASTException("skip_field: too few bytes");
-	    len -= count;
-	}
+	skip_bytes(len);
 	break;
     default:
 	throw new ASTException("skip_field: unexpected wiretype: "+wiretype);
@@ -215,7 +310,7 @@ getSize(int sort, String val)
     /* string count is size for length counter + strlen(string) */
     int count = 0;
     if(val != null) {
-	int slen = val.length();
+	int slen = Utf8.length(val); // bytes, not chars
         count = uint32_size(slen);
 	count += slen;
     }
@@ -273,8 +368,13 @@ getSizePacked(int sort, int[] val)
     case Wiretype.Ast_varint:
 	// Sigh! we have to walk it
 	int size = 0;
-	for(int i=0;i<val.length;i++)
-	    size += int64_size((long)val[i]);
+	for(int i=0;i<val.length;i++) {
+	    switch (sort) {
+	    case Sort.Ast_uint32: size += uint32_size(val[i]); break;
+	    case Sort.Ast_sint32: size += sint32_size(val[i]); break;
+	    default: size += int32_size(val[i]); break;
+	    }
+	}
 	return size;
     case Wiretype.Ast_32bit:
 	return 4*val.length;
@@ -290,8 +390,12 @@ getSizePacked(int sort, long[] val)
     case Wiretype.Ast_varint:
 	// Sigh! we have to walk it
 	int size = 0;
-	for(int i=0;i<val.length;i++)
-	    size += int64_size(val[i]);
+	for(int i=0;i<val.length;i++) {
+	    switch (sort) {
+	    case Sort.Ast_sint64: size += sint64_size(val[i]); break;
+	    default: size += uint64_size(val[i]); break;
+	    }
+	}
 	return size;
     case Wiretype.Ast_64bit:
 	return 8*val.length;
@@ -356,15 +460,11 @@ boolean
 read_tag(int[] wiretype, int[] fieldno)
     throws IOException
 {
-    int count;
     int key;
 
     /* Extract the wiretype + index */
-    count = readvarint(sizebuffer);
-    if(count < 0) return false;
-
-    /* convert from varint */
-    key = uint32_decode(count, sizebuffer);
+    if(io.atEOF()) return false;
+    key = readvarint32();
 
     /* Extract the wiretype and fieldno */
     wiretype[0] = (key & 0x7);
@@ -383,14 +483,26 @@ write_size(int size)
     io.write(len, sizebuffer);
 }
 
+int
+encode_size(int size, byte[] buf)
+{
+    return uint32_encode(size, buf);
+}
+
+/* A 32 bit varint never takes more than 5 bytes */
+int
+getMaxSizePrefix()
+{
+    return 5;
+}
+
 /* Procedure to extract size */
 int
 read_size()
     throws IOException
 {
-    int len = readvarint(sizebuffer);
-    if(len < 0) return len;
-    return uint32_decode(len, sizebuffer);
+    if(io.atEOF()) return -1;
+    return readvarint32();
 }
 
 //////////////////////////////////////////////////
@@ -423,9 +535,7 @@ read_primitive_boolean(int sort)
     throws IOException
 {
     assert(sort == Sort.Ast_bool);
-    int wiretype = wiretype(sort);
-    int len = readwirevalue(wiretype, valuebuffer);
-    boolean value = bool_decode(len, valuebuffer);
+    boolean value = (readvarint64() != 0);
     return value;
 }
 
@@ -436,9 +546,17 @@ read_primitive_string(int sort)
     assert(sort == Sort.Ast_string);
     int wiretype = wiretype(sort);
     int len = readwirevalue(wiretype, valuebuffer);
+    if(io.ensure(len)) {
+	// Decode in place from the read buffer
+	String s = (strings != null ? strings.get(io.rbuffer,io.rpos,len)
+				    : new String(io.rbuffer,io.rpos,len,utf8));
+	io.consume(len);
+	return s;
+    }
     byte[] stringbuf = new byte[len];
     if(!read(stringbuf, 0,len))
 	throw new ASTException("too few bytes");
+    if(strings != null) return strings.get(stringbuf,0,len);
     return new String(stringbuf,utf8);
 }
 
@@ -459,20 +577,17 @@ int
 read_primitive_int(int sort)
     throws IOException
 {
-    /* compute the wiretype from the sort */
-    int wiretype = wiretype(sort);
-    int len = readwirevalue(wiretype, valuebuffer);
     switch (sort) {
     case Sort.Ast_enum: /* fall thru */
-    case Sort.Ast_int32:
-        return int32_decode(len, valuebuffer);
+    case Sort.Ast_int32: /* fall thru */
     case Sort.Ast_uint32:
-        return uint32_decode(len, valuebuffer);
+        return readvarint32();
     case Sort.Ast_sint32:
-        return sint32_decode(len, valuebuffer);
-    case Sort.Ast_fixed32:
-        return fixed32_decode(4, valuebuffer);
+        return unzigzag32(readvarint32());
+    case Sort.Ast_fixed32: /* fall thru */
     case Sort.Ast_sfixed32:
+        if(readwirevalue(Wiretype.Ast_32bit, valuebuffer) < 0)
+	    throw new ASTException("too few bytes");
         return fixed32_decode(4, valuebuffer);
     default: break;
     }
@@ -483,45 +598,98 @@ long
 read_primitive_long(int sort)
     throws IOException
 {
-    /* compute the wiretype from the sort */
-    int wiretype = wiretype(sort);
-    int len = readwirevalue(wiretype, valuebuffer);
     switch (sort) {
-    case Sort.Ast_int64:
-        return int64_decode(len, valuebuffer);
+    case Sort.Ast_int64: /* fall thru */
     case Sort.Ast_uint64:
-        return uint64_decode(len, valuebuffer);
+        return readvarint64();
     case Sort.Ast_sint64:
-        return sint64_decode(len, valuebuffer);
-    case Sort.Ast_fixed64:
-        return fixed64_decode(8, valuebuffer);
+        return unzigzag64(readvarint64());
+    case Sort.Ast_fixed64: /* fall thru */
     case Sort.Ast_sfixed64:
+        if(readwirevalue(Wiretype.Ast_64bit, valuebuffer) < 0)
+	    throw new ASTException("too few bytes");
         return fixed64_decode(8, valuebuffer);
     default: break;
     }
     throw new ASTException("Unexpected sort: " + sort);
 }
 
+/* Obtain the next size bytes of a packed field as a little-endian
+   java.nio.ByteBuffer so fixed size values can be converted in bulk;
+   the bytes are used in place from the input when possible.
+   The result must be consumed before the next read.
+*/
+java.nio.ByteBuffer
+packedbytes(int size)
+    throws IOException
+{
+    java.nio.ByteBuffer bytes = io.slice(size);
+    if(bytes == null) {
+	byte[] data = new byte[size];
+	if(!read(data, 0,size))
+	    throw new ASTException("too few bytes");
+	bytes = java.nio.ByteBuffer.wrap(data);
+    }
+    return bytes.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+}
+
+/* Count the varints in the next size bytes if they are all
+   in the read buffer, so the output can be presized exactly;
+   return -1 otherwise.
+*/
+int
+countvarints(int size)
+    throws IOException
+{
+    if(!io.ensure(size)) return -1;
+    byte[] buf = io.rbuffer;
+    int nvalues = 0;
+    for(int i=io.rpos,last=io.rpos+size;i<last;i++) {
+	if(buf[i] >= 0) nvalues++; // terminating byte
+    }
+    return nvalues;
+}
+
+/* Initial output size when the varints cannot be counted */
+static int
+guessvarints(int size)
+{
+    return (size < 1024 ? size : 1024);
+}
+
+/* Smallest size to which an empty output is grown; the count
+   is 0 if the input holds no terminating byte.
+*/
+static final int MINVARINTS = 16;
+
+/* Read the byte count of a packed field; it is checked against
+   the input available (e.g. to the enclosing message) before
+   the readers size their output arrays from it.
+*/
+int
+read_packed_size()
+    throws IOException
+{
+    int size = readwirevalue(Wiretype.Ast_counted, valuebuffer);
+    if(size < 0)
+	throw new ASTException("negative packed size: "+size);
+    if(size > io.avail)
+	throw new ASTException("packed size "+size+" exceeds the available input: "+io.avail);
+    return size;
+}
+
 double[]
 read_primitive_packed_double(int sort)
     throws IOException
 {
     // extract the count
     assert(sort == Sort.Ast_double);
-    int wiretype = Wiretype.Ast_counted;
-    int size = readwirevalue(wiretype, valuebuffer);
+    int size = read_packed_size();
     int sizeof = wiresize(sort);
-
-    // Pull out the values as doubles
-    int ndoubles = size/sizeof;
-    double[] output = new double[ndoubles];
-
-    // Read bytes and insert into the converter
-    for(int i=0;i<ndoubles;i++) {
-	if(!read(valuebuffer, 0,sizeof))
-	    throw new ASTException("too few bytes");
-	output[i] = float64_decode(8, valuebuffer);
-    }	
+    if(size % sizeof != 0)
+	throw new ASTException("packed size not a multiple of "+sizeof);
+    double[] output = new double[size/sizeof];
+    packedbytes(size).asDoubleBuffer().get(output);
     return output;
 }
 
@@ -531,20 +699,12 @@ read_primitive_packed_float(int sort)
 {
     // extract the count
     assert(sort == Sort.Ast_float);
-    int wiretype = Wiretype.Ast_counted;
-    int size = readwirevalue(wiretype, valuebuffer);
+    int size = read_packed_size();
     int sizeof = wiresize(sort);
-
-    // Pull out the values as floats
-    int nfloats = size/sizeof;
-    float[] output = new float[nfloats];
-
-    // Read bytes and insert into the converter
-    for(int i=0;i<nfloats;i++) {
-	if(!read(valuebuffer, 0,size))
-	    throw new ASTException("too few bytes");
-	output[i] = float32_decode(4, valuebuffer);
-    }	
+    if(size % sizeof != 0)
+	throw new ASTException("packed size not a multiple of "+sizeof);
+    float[] output = new float[size/sizeof];
+    packedbytes(size).asFloatBuffer().get(output);
     return output;
 }
 
@@ -554,124 +714,101 @@ read_primitive_packed_bool(int sort)
 {
     // extract the count
     assert(sort == Sort.Ast_bool);
-    int wiretype = Wiretype.Ast_counted;
-    int size = readwirevalue(wiretype, valuebuffer);
-    int sizeof = wiresize(sort);
-
-    // Pull out the values as bools
-    int nbools = size/sizeof;
-    boolean[] output = new boolean[nbools];
-
-    // Read bytes and insert into the converter
-    for(int i=0;i<nbools;i++) {
-	if(!read(valuebuffer, 0,size))
-	    throw new ASTException("too few bytes");
-	output[i] = bool_decode(size, valuebuffer);
-    }	
+    int size = read_packed_size();
+    int nvalues = countvarints(size);
+    boolean[] output = new boolean[nvalues < 0 ? guessvarints(size) : nvalues];
+    int n = 0;
+    mark(size);
+    while(io.avail > 0) {
+	if(n == output.length) output = Arrays.copyOf(output,Math.max(2*n,MINVARINTS));
+	output[n++] = (readvarint64() != 0);
+    }
+    unmark();
+    if(n < output.length) output = Arrays.copyOf(output,n);
     return output;
 }
 
 // Read a sequence of values that are expected to be 32 bit integers
-// i.e. sort= Ast_int32,Ast_sint32,Ast_fixed32,Ast_sfixed32
+// i.e. sort= Ast_(u)int32,Ast_sint32,Ast_fixed32,Ast_sfixed32,Ast_enum
 
 int[]
 read_primitive_packed_int(int sort)
     throws IOException
 {
-    // extract the count; put data into valuebuffer (except for Wiretype.Ast_counted)
-    int size = readwirevalue(Wiretype.Ast_counted, valuebuffer);
-    int len = 0;
-    Ibuffer intdata = new Ibuffer();
-
-
-// i.e. sort= Ast_(u)int32,Ast_sint32,Ast_fixed32,Ast_sfixed32
-loop: for(int avail=size;avail > 0;) {
-	switch (wiretype(sort)) {
-        case Wiretype.Ast_varint:
-            len = readvarint(valuebuffer);
-	    if(len < 0) break loop;
-            avail -= len;
-	    break;
-        case Wiretype.Ast_32bit:
-            len = readwirevalue(Wiretype.Ast_32bit, valuebuffer);
-	    if(len < 0) break loop;
-            avail -= len;
-	    break;
-        default:
-	    throw new ASTException("illegal wiretype: " + wiretype(sort));
-        }
-        switch (sort) {
-        case Sort.Ast_int32:
-	    intdata.add(int32_decode(len, valuebuffer));
-	    break;			
-        case Sort.Ast_uint32:
-	    intdata.add(uint32_decode(len, valuebuffer));
-	    break;			
-        case Sort.Ast_sint32:
-	    intdata.add(sint32_decode(len, valuebuffer));
-	    break;			
-        case Sort.Ast_fixed32:
-	    intdata.add(fixed32_decode(4, valuebuffer));
-	    break;
-        case Sort.Ast_sfixed32:
-	    intdata.add(fixed32_decode(4, valuebuffer));
-	    break;
-        default: break;
-        }
-    } // for
-    return intdata.getContent();
+    // extract the count
+    int size = read_packed_size();
+    int[] output;
+    switch (sort) {
+    case Sort.Ast_fixed32: /* fall thru */
+    case Sort.Ast_sfixed32:
+	if(size % 4 != 0)
+	    throw new ASTException("packed size not a multiple of 4");
+	output = new int[size/4];
+	packedbytes(size).asIntBuffer().get(output);
+	return output;
+    case Sort.Ast_enum: /* fall thru */
+    case Sort.Ast_int32: /* fall thru */
+    case Sort.Ast_uint32: /* fall thru */
+    case Sort.Ast_sint32:
+	break;
+    default:
+	throw new ASTException("illegal packed sort: " + sort);
+    }
+    // Varint run
+    boolean zigzag = (sort == Sort.Ast_sint32);
+    int nvalues = countvarints(size);
+    output = new int[nvalues < 0 ? guessvarints(size) : nvalues];
+    int n = 0;
+    mark(size);
+    while(io.avail > 0) {
+	if(n == output.length) output = Arrays.copyOf(output,Math.max(2*n,MINVARINTS));
+	int value = readvarint32();
+	output[n++] = (zigzag ? unzigzag32(value) : value);
+    }
+    unmark();
+    if(n < output.length) output = Arrays.copyOf(output,n);
+    return output;
 }
 
 // Read a sequence of values that are expected to be 64 bit integers
-// i.e. sort= Ast_int64,Ast_sint64,Ast_fixed64,Ast_sfixed64
+// i.e. sort= Ast_(u)int64,Ast_sint64,Ast_fixed64,Ast_sfixed64
 
 long[]
 read_primitive_packed_long(int sort)
     throws IOException
 {
     // extract the count
-    int count = readwirevalue(Wiretype.Ast_counted, valuebuffer);
-    int size = wiresize(sort); // 0 => unknown => varint
-    int len = 0;
-    Lbuffer longdata = new Lbuffer();
-
-// i.e. sort= Ast_(u)int64,Ast_sint64,Ast_fixed64,Ast_sfixed64
-loop: for(int avail=size;avail > 0;) {
-	switch (wiretype(sort)) {
-        case Wiretype.Ast_varint:
-            len = readvarint(valuebuffer);
-	    if(len < 0) break loop;
-            avail -= len;
-	    break;
-        case Wiretype.Ast_64bit:
-            len = readwirevalue(Wiretype.Ast_64bit, valuebuffer);
-	    if(len < 0) break loop;
-            avail -= len;
-	    break;
-        default:
-	    throw new ASTException("illegal wiretype: " + wiretype(sort));
-        }
-
-        switch (sort) {
-        case Sort.Ast_int64:
-	    longdata.add(int64_decode(len, valuebuffer));
-	    break;			
-        case Sort.Ast_uint64:
-	    longdata.add(uint64_decode(len, valuebuffer));
-	    break;			
-        case Sort.Ast_sint64:
-	    longdata.add(sint64_decode(len, valuebuffer));
-	    break;			
-        case Sort.Ast_fixed64:
-	    longdata.add(fixed64_decode(8, valuebuffer));
-	    break;
-        case Sort.Ast_sfixed64:
-	    longdata.add(fixed64_decode(8, valuebuffer));
-	    break;
-        default: break;
-        }
-    } // for
-    return longdata.getContent();
+    int size = read_packed_size();
+    long[] output;
+    switch (sort) {
+    case Sort.Ast_fixed64: /* fall thru */
+    case Sort.Ast_sfixed64:
+	if(size % 8 != 0)
+	    throw new ASTException("packed size not a multiple of 8");
+	output = new long[size/8];
+	packedbytes(size).asLongBuffer().get(output);
+	return output;
+    case Sort.Ast_int64: /* fall thru */
+    case Sort.Ast_uint64: /* fall thru */
+    case Sort.Ast_sint64:
+	break;
+    default:
+	throw new ASTException("illegal packed sort: " + sort);
+    }
+    // Varint run
+    boolean zigzag = (sort == Sort.Ast_sint64);
+    int nvalues = countvarints(size);
+    output = new long[nvalues < 0 ? guessvarints(size) : nvalues];
+    int n = 0;
+    mark(size);
+    while(io.avail > 0) {
+	if(n == output.length) output = Arrays.copyOf(output,Math.max(2*n,MINVARINTS));
+	long value = readvarint64();
+	output[n++] = (zigzag ? unzigzag64(value) : value);
+    }
+    unmark();
+    if(n < output.length) output = Arrays.copyOf(output,n);
+    return output;
 }
 
 void
@@ -706,10 +843,9 @@ write_primitive(int sort, String val)
         throws IOException
 {
     assert(sort == Sort.Ast_string);
-    byte[] bval = val.getBytes(utf8);
-    int len = bval.length;
+    int len = Utf8.length(val);
     write_size(len);
-    write(len,bval);
+    io.writeutf8(val,len);
 }
 
 void
@@ -1353,6 +1489,7 @@ uint32_size(int value)
 static int
 int32_size(int v)
 {
+  if(v < 0) return 10; // negative values are sign extended to 64 bits
   return uint32_size(v);
 }
 
@@ -0,0 +1,180 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* Lazily iterate over a sequence of size prefixed records as
+   written by RecordWriter. next() only reads the size prefix
+   of a record; the record may then be decoded with read(), which
+   bounds the decoder to the record using mark(n)/unmark(),
+   or passed over with skip(). A record that was neither read
+   nor skipped is skipped by the following next().
+   Record offsets are relative to where the reader started, and
+   match those returned by RecordWriter.write().
+*/
+
+public class RecordReader
+{
+
+/* Creates the message instance for each record when iterating */
+static public interface Factory<T extends AbstractMessage>
+{
+    public T newMessage();
+}
+
+//////////////////////////////////////////////////
+// Instance fields
+
+ASTRuntime rt = null;
+long position = 0; // offset of the first byte after the current record
+long offset = -1; // offset of the current record
+int size = -1; // size of the current record, excluding its prefix
+boolean pending = false; // current record has not been consumed
+long count = 0; // number of records seen
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+RecordReader(ASTRuntime rt)
+{
+    this.rt = rt;
+}
+
+//////////////////////////////////////////////////
+// set/get
+
+public ASTRuntime getRuntime() {return rt;}
+
+/* Offset of the size prefix of the current record */
+public long getOffset() {return offset;}
+
+/* Size of the current record, excluding its prefix */
+public int getSize() {return size;}
+
+/* Number of records seen so far */
+public long getCount() {return count;}
+
+//////////////////////////////////////////////////
+
+/* Move to the next record, reading only its size prefix;
+   return false at the end of the input.
+*/
+public boolean
+next()
+    throws IOException
+{
+    if(pending) skip();
+    AbstractIO io = rt.io;
+    // Each record is bounded by its own mark, so the enclosing
+    // limit can be restarted to allow inputs larger than 2 Gb.
+    if(io.marks.empty()) io.avail = Integer.MAX_VALUE;
+    int before = io.avail;
+    int n = rt.read_size();
+    if(n < 0) {
+	offset = -1;
+	size = -1;
+	return false;
+    }
+    offset = position;
+    size = n;
+    position += (before - io.avail) + size;
+    pending = true;
+    count++;
+    return true;
+}
+
+/* Decode the current record into msg */
+public <T extends AbstractMessage> T
+read(T msg)
+    throws IOException
+{
+    if(!pending)
+	throw new IOException("RecordReader: no current record");
+    pending = false;
+    msg.rt = rt;
+    rt.mark(size);
+    msg.read();
+    skipbytes(rt.io.avail); // in case the decoder stopped short
+    rt.unmark();
+    return msg;
+}
+
+/* Pass over the current record without decoding it */
+public void
+skip()
+    throws IOException
+{
+    if(!pending) return;
+    pending = false;
+    rt.mark(size);
+    skipbytes(size);
+    rt.unmark();
+}
+
+void
+skipbytes(int n)
+    throws IOException
+{
+    if(n > 0 && !rt.io.skip(n))
+	throw new IOException("RecordReader: truncated record at offset "+offset);
+}
+
+/* Iterate over the remaining records, decoding each one into
+   a message obtained from factory. IOExceptions are rethrown
+   as ASTRuntimeExceptions.
+*/
+public <T extends AbstractMessage> Iterator<T>
+iterator(final Factory<T> factory)
+{
+    return new Iterator<T>() {
+	boolean advanced = false;
+	boolean more = false;
+
+	public boolean hasNext()
+	{
+	    if(!advanced) {
+		try {
+		    more = RecordReader.this.next();
+		} catch (IOException ioe) {
+		    throw new ASTRuntimeException(ioe.getMessage(),ioe);
+		}
+		advanced = true;
+	    }
+	    return more;
+	}
+
+	public T next()
+	{
+	    if(!hasNext()) throw new NoSuchElementException();
+	    advanced = false;
+	    try {
+		return read(factory.newMessage());
+	    } catch (IOException ioe) {
+		throw new ASTRuntimeException(ioe.getMessage(),ioe);
+	    }
+	}
+
+	public void remove()
+	{
+	    throw new UnsupportedOperationException();
+	}
+    };
+}
+
+public void
+close()
+    throws IOException
+{
+    rt.close();
+}
+
+}
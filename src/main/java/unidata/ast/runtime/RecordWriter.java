@@ -0,0 +1,88 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.io.IOException;
+
+/* Write a sequence of top-level messages back to back, each
+   preceded by its size prefix (a varint for Protobuf, 4 bytes
+   for XDR); this is the format read by RecordReader.
+   Each write() returns the byte offset of the record, relative
+   to where the writer started, so an index can be built while
+   writing.
+*/
+
+public class RecordWriter
+{
+
+//////////////////////////////////////////////////
+// Instance fields
+
+ASTRuntime rt = null;
+long position = 0; // offset of the next record
+long count = 0; // number of records written
+byte[] prefixbuffer = new byte[ASTRuntime.Sort.MAXTYPESIZE];
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public
+RecordWriter(ASTRuntime rt)
+{
+    this.rt = rt;
+}
+
+//////////////////////////////////////////////////
+// set/get
+
+public ASTRuntime getRuntime() {return rt;}
+
+/* Offset at which the next record will be written */
+public long getPosition() {return position;}
+
+public long getCount() {return count;}
+
+//////////////////////////////////////////////////
+
+/* Write msg as the next record; return its offset */
+public long
+write(AbstractMessage msg)
+    throws IOException
+{
+    long offset = position;
+    int size;
+    msg.rt = rt;
+    if(rt.isBackpatch()) {
+	rt.begin_message();
+	msg.write_fields();
+	size = rt.end_message();
+    } else {
+	size = msg.getSize();
+	rt.write(rt.encoder.encode_size(size,prefixbuffer),prefixbuffer);
+	msg.write_fields();
+    }
+    position += rt.encoder.encode_size(size,prefixbuffer) + size;
+    count++;
+    return offset;
+}
+
+public void
+flush()
+    throws IOException
+{
+    rt.flush();
+}
+
+public void
+close()
+    throws IOException
+{
+    rt.close();
+}
+
+}
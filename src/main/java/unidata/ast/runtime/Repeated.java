@@ -0,0 +1,223 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+import java.util.Arrays;
+
+/* Accumulators for the elements of a repeated field while it is
+   being read. Each builder grows geometrically, so adding n
+   elements costs O(n) total; finish() then returns an array
+   trimmed to exactly the number of elements added.
+   The builders are specialized for each primitive type to avoid
+   boxing; Repeated.Of handles strings, bytes, enums and messages
+   without any use of reflection.
+*/
+
+public class Repeated
+{
+
+static final int INITSIZE = 8;
+
+//////////////////////////////////////////////////
+
+static public class Doubles
+{
+    double[] values = new double[INITSIZE];
+    int count = 0;
+
+    public int size() {return count;}
+
+    public void
+    add(double value)
+    {
+	if(count == values.length) values = Arrays.copyOf(values,2*count);
+	values[count++] = value;
+    }
+
+    public void
+    addAll(double[] list)
+    {
+	if(list == null) return;
+	if(count + list.length > values.length)
+	    values = Arrays.copyOf(values,Math.max(2*count,count+list.length));
+	System.arraycopy(list,0,values,count,list.length);
+	count += list.length;
+    }
+
+    public double[]
+    finish()
+    {
+	return (count == values.length ? values : Arrays.copyOf(values,count));
+    }
+}
+
+static public class Floats
+{
+    float[] values = new float[INITSIZE];
+    int count = 0;
+
+    public int size() {return count;}
+
+    public void
+    add(float value)
+    {
+	if(count == values.length) values = Arrays.copyOf(values,2*count);
+	values[count++] = value;
+    }
+
+    public void
+    addAll(float[] list)
+    {
+	if(list == null) return;
+	if(count + list.length > values.length)
+	    values = Arrays.copyOf(values,Math.max(2*count,count+list.length));
+	System.arraycopy(list,0,values,count,list.length);
+	count += list.length;
+    }
+
+    public float[]
+    finish()
+    {
+	return (count == values.length ? values : Arrays.copyOf(values,count));
+    }
+}
+
+static public class Booleans
+{
+    boolean[] values = new boolean[INITSIZE];
+    int count = 0;
+
+    public int size() {return count;}
+
+    public void
+    add(boolean value)
+    {
+	if(count == values.length) values = Arrays.copyOf(values,2*count);
+	values[count++] = value;
+    }
+
+    public void
+    addAll(boolean[] list)
+    {
+	if(list == null) return;
+	if(count + list.length > values.length)
+	    values = Arrays.copyOf(values,Math.max(2*count,count+list.length));
+	System.arraycopy(list,0,values,count,list.length);
+	count += list.length;
+    }
+
+    public boolean[]
+    finish()
+    {
+	return (count == values.length ? values : Arrays.copyOf(values,count));
+    }
+}
+
+static public class Ints
+{
+    int[] values = new int[INITSIZE];
+    int count = 0;
+
+    public int size() {return count;}
+
+    public void
+    add(int value)
+    {
+	if(count == values.length) values = Arrays.copyOf(values,2*count);
+	values[count++] = value;
+    }
+
+    public void
+    addAll(int[] list)
+    {
+	if(list == null) return;
+	if(count + list.length > values.length)
+	    values = Arrays.copyOf(values,Math.max(2*count,count+list.length));
+	System.arraycopy(list,0,values,count,list.length);
+	count += list.length;
+    }
+
+    public int[]
+    finish()
+    {
+	return (count == values.length ? values : Arrays.copyOf(values,count));
+    }
+}
+
+static public class Longs
+{
+    long[] values = new long[INITSIZE];
+    int count = 0;
+
+    public int size() {return count;}
+
+    public void
+    add(long value)
+    {
+	if(count == values.length) values = Arrays.copyOf(values,2*count);
+	values[count++] = value;
+    }
+
+    public void
+    addAll(long[] list)
+    {
+	if(list == null) return;
+	if(count + list.length > values.length)
+	    values = Arrays.copyOf(values,Math.max(2*count,count+list.length));
+	System.arraycopy(list,0,values,count,list.length);
+	count += list.length;
+    }
+
+    public long[]
+    finish()
+    {
+	return (count == values.length ? values : Arrays.copyOf(values,count));
+    }
+}
+
+/* Builder for String, byte[], enum and message elements.
+   Since the element class is erased, finish() is handed
+   the output array (typically new T[size()]) rather
+   than creating one by reflection.
+*/
+
+static public class Of<T>
+{
+    Object[] values = new Object[INITSIZE];
+    int count = 0;
+
+    public int size() {return count;}
+
+    public void
+    add(T value)
+    {
+	if(count == values.length) values = Arrays.copyOf(values,2*count);
+	values[count++] = value;
+    }
+
+    public void
+    addAll(T[] list)
+    {
+	if(list == null) return;
+	if(count + list.length > values.length)
+	    values = Arrays.copyOf(values,Math.max(2*count,count+list.length));
+	System.arraycopy(list,0,values,count,list.length);
+	count += list.length;
+    }
+
+    public T[]
+    finish(T[] output)
+    {
+	if(output.length < count)
+	    throw new ASTRuntimeException("Repeated.finish: output array too small");
+	System.arraycopy(values,0,output,0,count);
+	return output;
+    }
+}
+
+} /*class Repeated*/
@@ -0,0 +1,165 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+/* Bounded cache of decoded strings keyed by their UTF-8 bytes,
+   so that repeated values (units, variable names, station ids...)
+   decode to a single shared String instance.
+   The table is set associative: a key may only live in one of
+   WAYS consecutive slots starting at its hash. A lookup compares
+   the bytes in place, so a hit allocates nothing. When all the
+   slots of a set are in use, the victim is chosen by the clock
+   (second chance) algorithm: each hit sets a slot's referenced
+   bit, and the hand clears bits until it finds an unreferenced slot.
+   Strings longer than the maximum key length are never cached.
+   A StringCache is not thread-safe; like the runtime it is
+   attached to (see ASTRuntime.setStringCache), it should be
+   used by one thread at a time.
+*/
+
+public class StringCache
+{
+
+static final int WAYS = 8;
+static final int DFALTMAXENTRIES = 4096;
+static final int DFALTMAXLENGTH = 64; // bytes
+
+//////////////////////////////////////////////////
+// Instance fields
+
+int mask; // table size - 1
+byte[][] keys;
+String[] values;
+int[] hashes;
+boolean[] referenced;
+int[] hands; // clock hand per set, as an offset 0..WAYS-1
+int maxlength;
+
+long hits = 0;
+long misses = 0;
+long evictions = 0;
+
+//////////////////////////////////////////////////
+// Constructor(s)
+
+public StringCache() {this(DFALTMAXENTRIES,DFALTMAXLENGTH);}
+
+public StringCache(int maxentries) {this(maxentries,DFALTMAXLENGTH);}
+
+/* Hold at most maxentries strings (rounded up to a power of two)
+   of up to maxlength UTF-8 bytes each.
+*/
+public
+StringCache(int maxentries, int maxlength)
+{
+    int size = WAYS;
+    while(size < maxentries) size <<= 1;
+    mask = size - 1;
+    keys = new byte[size][];
+    values = new String[size];
+    hashes = new int[size];
+    referenced = new boolean[size];
+    hands = new int[size];
+    this.maxlength = maxlength;
+}
+
+//////////////////////////////////////////////////
+// Accessors
+
+public long getHits() {return hits;}
+public long getMisses() {return misses;}
+public long getEvictions() {return evictions;}
+public int getCapacity() {return mask + 1;}
+public int getMaxLength() {return maxlength;}
+
+public int
+size()
+{
+    int count = 0;
+    for(int i=0;i<=mask;i++)
+	if(keys[i] != null) count++;
+    return count;
+}
+
+public void
+clear()
+{
+    for(int i=0;i<=mask;i++) {
+	keys[i] = null;
+	values[i] = null;
+	referenced[i] = false;
+    }
+    hits = misses = evictions = 0;
+}
+
+//////////////////////////////////////////////////
+
+/* Return the String for the UTF-8 bytes buf[offset..offset+len) */
+public String
+get(byte[] buf, int offset, int len)
+{
+    if(len > maxlength)
+	return new String(buf,offset,len,ASTRuntime.utf8);
+    int hash = len;
+    for(int i=0;i<len;i++)
+	hash = 31*hash + buf[offset+i];
+    hash ^= (hash >>> 16);
+    int set = hash & mask;
+    int empty = -1;
+    for(int w=0;w<WAYS;w++) {
+	int slot = (set + w) & mask;
+	byte[] key = keys[slot];
+	if(key == null) {
+	    if(empty < 0) empty = slot;
+	    continue;
+	}
+	if(hashes[slot] != hash || key.length != len) continue;
+	if(matches(key,buf,offset,len)) {
+	    hits++;
+	    referenced[slot] = true;
+	    return values[slot];
+	}
+    }
+    misses++;
+    String s = new String(buf,offset,len,ASTRuntime.utf8);
+    int slot = (empty >= 0 ? empty : victim(set));
+    byte[] key = new byte[len];
+    System.arraycopy(buf,offset,key,0,len);
+    keys[slot] = key;
+    values[slot] = s;
+    hashes[slot] = hash;
+    referenced[slot] = false;
+    return s;
+}
+
+static boolean
+matches(byte[] key, byte[] buf, int offset, int len)
+{
+    for(int i=0;i<len;i++)
+	if(key[i] != buf[offset+i]) return false;
+    return true;
+}
+
+/* Clock over the slots of a full set */
+int
+victim(int set)
+{
+    evictions++;
+    int hand = hands[set];
+    for(;;) {
+	int slot = (set + hand) & mask;
+	hand = (hand + 1) % WAYS;
+	if(!referenced[slot]) {
+	    hands[set] = hand;
+	    return slot;
+	}
+	referenced[slot] = false;
+    }
+}
+
+}
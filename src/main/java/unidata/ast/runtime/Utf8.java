@@ -0,0 +1,84 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.runtime;
+
+/* UTF-8 sizing and encoding of Strings without going
+   through a Charset, so nothing is allocated.
+   Leading ASCII characters take a fast path.
+   The output is identical to String.getBytes(utf8); in
+   particular, an unpaired surrogate is encoded as '?'.
+*/
+
+public class Utf8
+{
+
+/* Exact number of bytes in the UTF-8 encoding of s */
+static public int
+length(String s)
+{
+    int n = s.length();
+    int i = 0;
+    while(i < n && s.charAt(i) < 0x80) i++; // ASCII fast path
+    int len = i;
+    for(;i<n;i++) {
+	char c = s.charAt(i);
+	if(c < 0x80)
+	    len += 1;
+	else if(c < 0x800)
+	    len += 2;
+	else if(!Character.isSurrogate(c))
+	    len += 3;
+	else if(Character.isHighSurrogate(c) && i+1 < n
+		&& Character.isLowSurrogate(s.charAt(i+1))) {
+	    len += 4;
+	    i++;
+	} else
+	    len += 1; // unpaired surrogate => '?'
+    }
+    return len;
+}
+
+/* Encode s into out starting at offset; out must have room
+   for length(s) bytes. Return the number of bytes written.
+*/
+static public int
+encode(String s, byte[] out, int offset)
+{
+    int n = s.length();
+    int pos = offset;
+    int i = 0;
+    for(;i<n;i++) { // ASCII fast path
+	char c = s.charAt(i);
+	if(c >= 0x80) break;
+	out[pos++] = (byte)c;
+    }
+    for(;i<n;i++) {
+	char c = s.charAt(i);
+	if(c < 0x80) {
+	    out[pos++] = (byte)c;
+	} else if(c < 0x800) {
+	    out[pos++] = (byte)(0xc0 | (c >> 6));
+	    out[pos++] = (byte)(0x80 | (c & 0x3f));
+	} else if(!Character.isSurrogate(c)) {
+	    out[pos++] = (byte)(0xe0 | (c >> 12));
+	    out[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+	    out[pos++] = (byte)(0x80 | (c & 0x3f));
+	} else if(Character.isHighSurrogate(c) && i+1 < n
+		  && Character.isLowSurrogate(s.charAt(i+1))) {
+	    int cp = Character.toCodePoint(c,s.charAt(++i));
+	    out[pos++] = (byte)(0xf0 | (cp >> 18));
+	    out[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+	    out[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+	    out[pos++] = (byte)(0x80 | (cp & 0x3f));
+	} else
+	    out[pos++] = (byte)'?';
+    }
+    return pos - offset;
+}
+
+}
@@ -51,10 +51,15 @@ public class XDREncoding extends Encoding
 {
 
 //////////////////////////////////////////////////
-static byte[] valuebuffer = new byte[Sort.MAXTYPESIZE];
-static byte[] sizebuffer = new byte[Sort.MAXTYPESIZE];
-static byte[] zerobytes = new byte[]{0,0,0,0}; // for writing xdr padding
-static byte[] padding = new byte[4]; // for reading xdr padding
+static final byte[] zerobytes = new byte[]{0,0,0,0}; // for writing xdr padding; never modified
+
+//////////////////////////////////////////////////
+// Instance fields; scratch space must be per-instance
+// so that runtimes in different threads do not collide.
+
+byte[] valuebuffer = new byte[Sort.MAXTYPESIZE];
+byte[] sizebuffer = new byte[Sort.MAXTYPESIZE];
+byte[] padding = new byte[4]; // for reading xdr padding
 
 
 /* Convert sort to wiretype */
@@ -154,23 +159,16 @@ skip_field(int wiretype, int fieldno)
         len = read_size();
 	break;
     case Wiretype.Ast_32bit:
-        read(valuebuffer, 0,(len=4));
+        skip_bytes(4);
 	break;
     case Wiretype.Ast_64bit:
-	len = 8;
-        read(valuebuffer, 0,(len=8));
+        skip_bytes(8);
 	break;
     case Wiretype.Ast_counted:
-        len = read_size();
-        /* get the count */
-	len = uint32_decode(len, valuebuffer);
+        /* get the count; the value is padded to a multiple of 4 */
+        len = xdrround(read_size());
 	/* Now skip "len" bytes */
-	while(len > 0) {
-	    int count = (len > valuebuffer.length? valuebuffer.length:len);
-	    if(!read(valuebuffer, 0,count))
-		throw new ASTException("skip_field: too few bytes");
-	    len -= count;
-	}
+	skip_bytes(len);
 	break;
     default:
 	throw new ASTException("skip_field: unexpected wiretype: "+wiretype);
@@ -212,7 +210,7 @@ getSize(int sort, String val)
     /* string count is size for length counter + strlen(string) */
     int count = 0;
     if(val != null) {
-	count = xdrround(val.length())+4;
+	count = xdrround(Utf8.length(val))+4; // bytes, not chars
     }
     return count;
 }
@@ -279,7 +277,7 @@ getSizePacked(int sort, double[] val)
 int
 getSizePacked(int sort, boolean[] val)
 {
-    return xdrround(val.length);
+    return 4*val.length;
 }
 
 
@@ -342,6 +340,19 @@ write_size(int size)
     io.write(len, sizebuffer);
 }
 
+int
+encode_size(int size, byte[] buf)
+{
+    return uint32_encode(size, buf);
+}
+
+/* Sizes are always written as 4 bytes */
+int
+getMaxSizePrefix()
+{
+    return 4;
+}
+
 /* Procedure to extract size */
 int
 read_size()
@@ -392,7 +403,24 @@ read_primitive_string(int sort)
     throws IOException
 {
     assert(sort == Sort.Ast_string);
-    byte[] stringbuf = read_primitive_bytes(Sort.Ast_bytes);
+    int wiretype = wiretype(Sort.Ast_bytes);
+    int len = readwirevalue(wiretype, valuebuffer);
+    int padded = xdrround(len);
+    if(io.ensure(padded)) {
+	// Decode in place from the read buffer
+	String s = (strings != null ? strings.get(io.rbuffer,io.rpos,len)
+				    : new String(io.rbuffer,io.rpos,len,utf8));
+	io.consume(padded);
+	return s;
+    }
+    byte[] stringbuf = new byte[len];
+    if(len > 0) {
+        if(!read(stringbuf, 0,len))
+	    throw new ASTException("too few bytes");
+    }
+    if(!read(padding, 0, padded - len))
+	    throw new ASTException("too few bytes");
+    if(strings != null) return strings.get(stringbuf,0,len);
     String s = new String(stringbuf,utf8);
     return s;
 }
@@ -532,7 +560,7 @@ read_primitive_packed_bool(int sort)
 }
 
 // Read a sequence of values that are expected to be 32 bit integers
-// i.e. sort= Ast_int32,Ast_sint32,Ast_fixed32,Ast_sfixed32
+// i.e. sort= Ast_int32,Ast_sint32,Ast_fixed32,Ast_sfixed32,Ast_enum
 
 int[]
 read_primitive_packed_int(int sort)
@@ -545,6 +573,7 @@ read_primitive_packed_int(int sort)
 
 loop: for(int i=0;i<nints;i++) {
         switch (sort) {
+        case Sort.Ast_enum:
         case Sort.Ast_int32:
         case Sort.Ast_uint32:
         case Sort.Ast_sint32:
@@ -620,8 +649,13 @@ write_primitive(int sort, String val)
         throws IOException
 {
     assert(sort == Sort.Ast_string);
-    byte[] bval = val.getBytes(utf8);
-    write_primitive(Sort.Ast_bytes,bval);
+    int len = Utf8.length(val);
+    int xdrlen = xdrround(len);
+    write_size(len);
+    io.writeutf8(val,len);
+    if(xdrlen-len > 0) {
+        write(xdrlen-len,zerobytes);
+    }
 }
 
 void
@@ -698,14 +732,10 @@ write_primitive_packed(int sort, boolean[] val)
 {
     assert(sort == Sort.Ast_bool);
     if(val == null) return;
-    int xdrlen = getSizePacked(sort, val);
-    write_size(val.length);
+    int size = getSizePacked(sort,val);
+    write_size(size);
     for(int i=0;i<val.length;i++)
 	write_primitive(Sort.Ast_bool,val[i]);
-    if(xdrlen-val.length > 0) {
-        byte[] xtra = new byte[]{0,0,0,0};
-        write(xdrlen-val.length,xtra);
-    }
 }
 
 void
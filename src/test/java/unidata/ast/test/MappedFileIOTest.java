@@ -0,0 +1,118 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.test;
+
+import unidata.ast.runtime.*;
+
+import java.io.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static unidata.ast.runtime.ASTRuntime.Sort.*;
+
+/* Round trip strings and bytes, including empty ones, through
+   a MappedFileIO for both encodings. MappedFileIO has no read
+   buffer, so empty values must not be decoded "in place"
+   (see AbstractIO.ensure()). Small windows make the longer
+   values cross window boundaries.
+*/
+
+public class MappedFileIOTest
+{
+
+static final int NRECORDS = 100;
+static final int[] WINDOWSIZES = new int[]{16,37,1<<20};
+
+// Every third value is empty
+static String stringval(int i) {return (i % 3 == 0 ? "" : "s" + i + (i % 2 == 0 ? "\u00e9" : ""));}
+static byte[] bytesval(int i)
+{
+    byte[] b = new byte[(i % 3 == 1 ? 0 : i % 11)];
+    for(int k=0;k<b.length;k++) b[k] = (byte)(i + k);
+    return b;
+}
+
+static File
+encode(ASTRuntime.Encoder encoding)
+    throws IOException
+{
+    File f = File.createTempFile("mappedio",".dat");
+    f.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(f);
+    ASTRuntime rt = new ASTRuntime(encoding,new ByteIO(fos));
+    for(int i=0;i<NRECORDS;i++) {
+	rt.write_primitive(Ast_string,stringval(i));
+	rt.write_primitive(Ast_bytes,bytesval(i));
+	rt.write_primitive(Ast_int32,i);
+    }
+    rt.flush();
+    fos.close();
+    return f;
+}
+
+static void
+decode(ASTRuntime.Encoder encoding, File f, int windowsize)
+    throws IOException
+{
+    MappedFileIO io = new MappedFileIO(f);
+    io.setWindowSize(windowsize);
+    try {
+	ASTRuntime rt = new ASTRuntime(encoding,io);
+	for(int i=0;i<NRECORDS;i++) {
+	    String where = encoding+" window "+windowsize+" record "+i;
+	    assertEquals(where,stringval(i),rt.read_primitive_string(Ast_string));
+	    assertArrayEquals(where,bytesval(i),rt.read_primitive_bytes(Ast_bytes));
+	    assertEquals(where,i,rt.read_primitive_int(Ast_int32));
+	}
+    } finally {
+	io.close();
+    }
+}
+
+@Test
+public void
+testEmptyValues()
+    throws Exception
+{
+    for(ASTRuntime.Encoder encoding: ASTRuntime.Encoder.values()) {
+	File f = encode(encoding);
+	try {
+	    for(int windowsize: WINDOWSIZES)
+		decode(encoding,f,windowsize);
+	} finally {
+	    f.delete();
+	}
+    }
+}
+
+/* The string cache takes the same in-place path */
+@Test
+public void
+testEmptyStringsCached()
+    throws Exception
+{
+    for(ASTRuntime.Encoder encoding: ASTRuntime.Encoder.values()) {
+	File f = encode(encoding);
+	MappedFileIO io = new MappedFileIO(f);
+	try {
+	    ASTRuntime rt = new ASTRuntime(encoding,io);
+	    rt.setStringCache(new StringCache());
+	    for(int i=0;i<NRECORDS;i++) {
+		assertEquals(stringval(i),rt.read_primitive_string(Ast_string));
+		assertArrayEquals(bytesval(i),rt.read_primitive_bytes(Ast_bytes));
+		assertEquals(i,rt.read_primitive_int(Ast_int32));
+	    }
+	} finally {
+	    io.close();
+	    f.delete();
+	}
+    }
+}
+
+}
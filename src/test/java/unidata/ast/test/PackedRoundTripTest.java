@@ -0,0 +1,169 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.test;
+
+import unidata.ast.runtime.*;
+
+import java.io.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static unidata.ast.runtime.ASTRuntime.Sort.*;
+
+/* Round trip packed bool and enum fields through both encodings,
+   as the generated code writes and reads them: the packed tag,
+   the packed values, and a trailing field that must still be
+   found where it was written. For bools, also check that the
+   size the runtime computes matches what is written, and that
+   the packed field can be skipped.
+*/
+
+public class PackedRoundTripTest
+{
+
+static final int[] LENGTHS = new int[]{0,1,2,3,4,5,7,8,255,256,1000};
+
+static boolean[]
+bools(int n)
+{
+    boolean[] b = new boolean[n];
+    for(int i=0;i<n;i++) b[i] = (i % 3 == 0);
+    return b;
+}
+
+// Includes negative values (unknown to any generated enum)
+static int[]
+enums(int n)
+{
+    int[] v = new int[n];
+    for(int i=0;i<n;i++) v[i] = (i % 5 == 4 ? -i : i % 3);
+    return v;
+}
+
+static ByteArrayOutputStream bos = null;
+
+static ASTRuntime
+writer(ASTRuntime.Encoder encoding)
+    throws IOException
+{
+    bos = new ByteArrayOutputStream();
+    return new ASTRuntime(encoding,new ByteIO(bos));
+}
+
+static ASTRuntime
+reader(ASTRuntime.Encoder encoding)
+    throws IOException
+{
+    return new ASTRuntime(encoding,new ByteIO(bos.toByteArray()));
+}
+
+@Test
+public void
+testPackedBool()
+    throws Exception
+{
+    for(ASTRuntime.Encoder encoding: ASTRuntime.Encoder.values()) {
+	for(int n: LENGTHS) {
+	    String where = encoding+" length "+n;
+	    boolean[] values = bools(n);
+	    ASTRuntime rt = writer(encoding);
+	    rt.write_tag(Ast_packed,1);
+	    rt.write_primitive_packed(Ast_bool,values);
+	    rt.write_tag(Ast_int32,2);
+	    rt.write_primitive(Ast_int32,12345L);
+	    rt.flush();
+	    int size = rt.getTagSize(Ast_packed,1)
+		       + rt.getMessageSize(rt.getSizePacked(Ast_bool,values))
+		       + rt.getTagSize(Ast_int32,2) + rt.getSize(Ast_int32,12345L);
+	    assertEquals(where+": size",size,bos.size());
+
+	    rt = reader(encoding);
+	    int[] wiretype = new int[1];
+	    int[] fieldno = new int[1];
+	    assertTrue(where,rt.read_tag(wiretype,fieldno));
+	    assertEquals(where,1,fieldno[0]);
+	    assertArrayEquals(where,values,rt.read_primitive_packed_bool(Ast_bool));
+	    assertTrue(where,rt.read_tag(wiretype,fieldno));
+	    assertEquals(where,2,fieldno[0]);
+	    assertEquals(where,12345,rt.read_primitive_int(Ast_int32));
+
+	    // Skipping the packed field must land on the next one
+	    rt = reader(encoding);
+	    assertTrue(where,rt.read_tag(wiretype,fieldno));
+	    rt.skip_field(wiretype[0],fieldno[0]);
+	    assertTrue(where,rt.read_tag(wiretype,fieldno));
+	    assertEquals(where+": after skip",2,fieldno[0]);
+	    assertEquals(where+": after skip",12345,rt.read_primitive_int(Ast_int32));
+	}
+    }
+}
+
+@Test
+public void
+testPackedEnum()
+    throws Exception
+{
+    for(ASTRuntime.Encoder encoding: ASTRuntime.Encoder.values()) {
+	for(int n: LENGTHS) {
+	    String where = encoding+" length "+n;
+	    int[] values = enums(n);
+	    ASTRuntime rt = writer(encoding);
+	    rt.write_tag(Ast_packed,1);
+	    rt.write_primitive_packed(Ast_enum,values);
+	    rt.write_tag(Ast_int32,2);
+	    rt.write_primitive(Ast_int32,12345L);
+	    rt.flush();
+
+	    rt = reader(encoding);
+	    int[] wiretype = new int[1];
+	    int[] fieldno = new int[1];
+	    assertTrue(where,rt.read_tag(wiretype,fieldno));
+	    assertEquals(where,1,fieldno[0]);
+	    int[] result = rt.read_primitive_packed_int(Ast_enum);
+	    assertEquals(where+": length",n,result.length);
+	    for(int i=0;i<n;i++)
+		assertEquals(where+": value "+i,values[i],result[i]);
+	    assertTrue(where,rt.read_tag(wiretype,fieldno));
+	    assertEquals(where,2,fieldno[0]);
+	    assertEquals(where,12345,rt.read_primitive_int(Ast_int32));
+	}
+    }
+}
+
+/* A corrupt length prefix within a message must be rejected
+   before any output array is sized from it.
+*/
+@Test
+public void
+testPackedSizeExceedsMessage()
+    throws Exception
+{
+    int[] sorts = new int[]{Ast_double,Ast_float,Ast_fixed32,Ast_fixed64,Ast_int32,Ast_int64,Ast_bool};
+    for(int sort: sorts) {
+	// varint 0x7ffffff8, then only 4 bytes of values
+	byte[] input = new byte[]{(byte)0xf8,(byte)0xff,(byte)0xff,(byte)0xff,0x07,0,0,0,0};
+	ByteIO io = new ByteIO(input);
+	io.setAvail(input.length); // as within a message of that size
+	ASTRuntime rt = new ASTRuntime(ASTRuntime.Encoder.Protobuf,io);
+	try {
+	    switch (sort) {
+	    case Ast_double: rt.read_primitive_packed_double(sort); break;
+	    case Ast_float: rt.read_primitive_packed_float(sort); break;
+	    case Ast_bool: rt.read_primitive_packed_bool(sort); break;
+	    case Ast_fixed64: case Ast_int64: rt.read_primitive_packed_long(sort); break;
+	    default: rt.read_primitive_packed_int(sort); break;
+	    }
+	    fail("sort "+sort+": oversized packed field was accepted");
+	} catch (ASTException ae) {
+	    // expected
+	}
+    }
+}
+
+}
@@ -0,0 +1,195 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.test;
+
+import unidata.ast.runtime.*;
+import unidata.ast.runtime.ASTRuntime.Sort;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/* ParallelRecordReader over a stream of small records, intact
+   and with the last record corrupted. The batches run on the
+   worker threads of a private pool, so a decode failure reaches
+   the caller through the pool's rethrow of the task's exception,
+   and must still arrive as the original IOException.
+*/
+
+public class ParallelRecordReaderTest
+{
+
+static final int NRECORDS = 2000;
+static final int BATCHSIZE = 64; // bytes, so many small batches
+static final int NTHREADS = 4;
+
+/* A minimal message, written as the Java generator would */
+static public class Record extends AbstractMessage
+{
+    public int f_int32;
+    public String f_string;
+
+    public void
+    clear()
+    {
+        f_int32 = 0;
+        f_string = null;
+    }
+
+    protected void
+    write_fields() throws IOException
+    {
+        write_tag(Sort.Ast_int32,1);
+        write_primitive(Sort.Ast_int32,f_int32);
+        write_tag(Sort.Ast_string,2);
+        write_primitive(Sort.Ast_string,f_string);
+    }
+
+    public Record
+    read() throws IOException
+    {
+        clear();
+        cachedsize = -1;
+        read_fields();
+        return this;
+    }
+
+    protected void
+    read_fields() throws IOException
+    {
+        int[] ast_wiretype = new int[1];
+        int[] ast_fieldno = new int[1];
+        while(read_tag(ast_wiretype,ast_fieldno)) {
+            switch (ast_fieldno[0]) {
+            case 1:
+                f_int32 = read_primitive_int(Sort.Ast_int32);
+                break;
+            case 2:
+                f_string = read_primitive_string(Sort.Ast_string);
+                break;
+            default:
+                skip_field(ast_wiretype[0],ast_fieldno[0]);
+                break;
+            }
+        }
+    }
+
+    public int
+    getSize() throws IOException
+    {
+        int totalsize = 0;
+        totalsize += getTagSize(Sort.Ast_int32,1) + getSize(Sort.Ast_int32,f_int32);
+        totalsize += getTagSize(Sort.Ast_string,2) + getSize(Sort.Ast_string,f_string);
+        cachedsize = totalsize;
+        return totalsize;
+    }
+}
+
+static final RecordReader.Factory<Record> FACTORY = new RecordReader.Factory<Record>() {
+    public Record newMessage() {return new Record();}
+};
+
+static byte[]
+encode()
+    throws IOException
+{
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ASTRuntime rt = new ASTRuntime(ASTRuntime.Encoder.Protobuf,new ByteIO(bos));
+    RecordWriter writer = new RecordWriter(rt);
+    for(int i=0;i<NRECORDS;i++) {
+	Record r = new Record();
+	r.f_int32 = i;
+	r.f_string = "r" + i;
+	writer.write(r);
+    }
+    writer.flush();
+    return bos.toByteArray();
+}
+
+/* Turn the first tag of the last record into that of an unknown
+   field with the (invalid) wiretype 7, which skip_field rejects
+*/
+static byte[]
+corrupt(byte[] encoded)
+    throws IOException
+{
+    long[] offsets = new ParallelRecordReader(ASTRuntime.Encoder.Protobuf,encoded).getOffsets();
+    byte[] bad = encoded.clone();
+    int last = (int)offsets[NRECORDS-1];
+    bad[last+1] = (byte)((3 << 3) | 7); // after the 1 byte size prefix
+    return bad;
+}
+
+static ParallelRecordReader
+reader(byte[] encoded, ForkJoinPool pool)
+    throws IOException
+{
+    ParallelRecordReader reader = new ParallelRecordReader(ASTRuntime.Encoder.Protobuf,encoded);
+    reader.setPool(pool);
+    reader.setBatchSize(BATCHSIZE);
+    return reader;
+}
+
+@Test
+public void
+testReadAll()
+    throws Exception
+{
+    ForkJoinPool pool = new ForkJoinPool(NTHREADS);
+    try {
+	List<Record> records = reader(encode(),pool).readAll(FACTORY);
+	assertEquals(NRECORDS,records.size());
+	for(int i=0;i<NRECORDS;i++) {
+	    assertEquals(i,records.get(i).f_int32);
+	    assertEquals("r"+i,records.get(i).f_string);
+	}
+    } finally {
+	pool.shutdown();
+    }
+}
+
+@Test
+public void
+testLateBatchFailsReadAll()
+    throws Exception
+{
+    ForkJoinPool pool = new ForkJoinPool(NTHREADS);
+    try {
+	reader(corrupt(encode()),pool).readAll(FACTORY);
+	fail("corrupt record was not detected");
+    } catch (IOException ioe) {
+	// expected
+    } finally {
+	pool.shutdown();
+    }
+}
+
+@Test
+public void
+testLateBatchFailsForEach()
+    throws Exception
+{
+    ForkJoinPool pool = new ForkJoinPool(NTHREADS);
+    final int[] count = new int[1];
+    try {
+	reader(corrupt(encode()),pool).forEach(FACTORY,
+	    new ParallelRecordReader.Callback<Record>() {
+		public void record(long index, Record msg) {count[0]++;}
+	    });
+	fail("corrupt record was not detected");
+    } catch (IOException ioe) {
+	assertTrue(count[0] < NRECORDS);
+    } finally {
+	pool.shutdown();
+    }
+}
+
+}
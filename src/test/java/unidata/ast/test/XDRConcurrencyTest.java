@@ -0,0 +1,186 @@
+/*********************************************************************
+ *   Copyright 2010, UCAR/Unidata
+ *   See netcdf/COPYRIGHT file for copying and redistribution conditions.
+ *   $Id$
+ *   $Header$
+ *********************************************************************/
+
+package unidata.ast.test;
+
+import unidata.ast.runtime.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import static unidata.ast.runtime.ASTRuntime.Sort.*;
+
+/* Stress test for XDREncoding when used from many threads at once.
+   Each thread owns its own ASTRuntime(Encoder.XDR,...) and encodes,
+   then repeatedly decodes, a stream of records whose values are
+   unique to that thread. The threads are released together, so if
+   any scratch state were shared between runtimes (as the static
+   valuebuffer, sizebuffer and padding once were), values from one
+   thread would show up in the results of another.
+*/
+
+public class XDRConcurrencyTest
+{
+
+static final int NTHREADS = 2 * Math.max(4,Runtime.getRuntime().availableProcessors());
+static final int NRECORDS = 2000;
+static final int NPASSES = 10; // decode passes per thread
+static final int NPACKED = 7; // elements in the packed fields
+
+//////////////////////////////////////////////////
+// Record contents; every value depends on the thread and record
+
+static int intval(int t, int i) {return (t << 20) ^ (i * 7919) ^ -(i & 1);}
+static long longval(int t, int i) {return ((long)t << 40) ^ ((long)i * 104729L) ^ -(i & 2);}
+static double doubleval(int t, int i) {return t * 1000.0 + i / 8.0;}
+static float floatval(int t, int i) {return t * 100.0f + i / 4.0f;}
+static boolean boolval(int t, int i) {return ((t + i) & 1) != 0;}
+// Odd lengths exercise the XDR padding
+static String stringval(int t, int i) {return "t" + t + ".r" + i + (i % 3 == 0 ? "x" : "");}
+
+static void
+write(ASTRuntime rt, int t, int i)
+    throws IOException
+{
+    rt.write_primitive(Ast_int32,intval(t,i));
+    rt.write_primitive(Ast_sint32,-intval(t,i));
+    rt.write_primitive(Ast_int64,longval(t,i));
+    rt.write_primitive(Ast_fixed64,~longval(t,i));
+    rt.write_primitive(Ast_double,doubleval(t,i));
+    rt.write_primitive(Ast_float,floatval(t,i));
+    rt.write_primitive(Ast_bool,boolval(t,i));
+    rt.write_primitive(Ast_string,stringval(t,i));
+    int[] ints = new int[NPACKED];
+    double[] doubles = new double[NPACKED];
+    for(int k=0;k<NPACKED;k++) {
+	ints[k] = intval(t,i+k);
+	doubles[k] = doubleval(t,i+k);
+    }
+    rt.write_primitive_packed(Ast_int32,ints);
+    rt.write_primitive_packed(Ast_double,doubles);
+}
+
+/* Decode one record; return a description of the first
+   mismatch, or null if the record is intact.
+*/
+static String
+check(ASTRuntime rt, int t, int i)
+    throws IOException
+{
+    if(rt.read_primitive_int(Ast_int32) != intval(t,i)) return "int32";
+    if(rt.read_primitive_int(Ast_sint32) != -intval(t,i)) return "sint32";
+    if(rt.read_primitive_long(Ast_int64) != longval(t,i)) return "int64";
+    if(rt.read_primitive_long(Ast_fixed64) != ~longval(t,i)) return "fixed64";
+    if(rt.read_primitive_double(Ast_double) != doubleval(t,i)) return "double";
+    if(rt.read_primitive_float(Ast_float) != floatval(t,i)) return "float";
+    if(rt.read_primitive_boolean(Ast_bool) != boolval(t,i)) return "bool";
+    if(!stringval(t,i).equals(rt.read_primitive_string(Ast_string))) return "string";
+    int[] ints = rt.read_primitive_packed_int(Ast_int32);
+    double[] doubles = rt.read_primitive_packed_double(Ast_double);
+    if(ints.length != NPACKED || doubles.length != NPACKED) return "packed length";
+    for(int k=0;k<NPACKED;k++) {
+	if(ints[k] != intval(t,i+k)) return "packed int32";
+	if(doubles[k] != doubleval(t,i+k)) return "packed double";
+    }
+    return null;
+}
+
+//////////////////////////////////////////////////
+
+/* Run task(t) for every thread t, all starting together */
+static void
+parallel(final ThreadTask task)
+    throws Exception
+{
+    ExecutorService pool = Executors.newFixedThreadPool(NTHREADS);
+    final CyclicBarrier start = new CyclicBarrier(NTHREADS);
+    try {
+	List<Future<String>> results = new ArrayList<Future<String>>();
+	for(int t=0;t<NTHREADS;t++) {
+	    final int thread = t;
+	    results.add(pool.submit(new Callable<String>() {
+		public String call() throws Exception {
+		    start.await();
+		    return task.run(thread);
+		}
+	    }));
+	}
+	for(int t=0;t<NTHREADS;t++) {
+	    String failure = results.get(t).get(60,TimeUnit.SECONDS);
+	    assertNull("thread "+t+": "+failure,failure);
+	}
+    } finally {
+	pool.shutdownNow();
+    }
+}
+
+interface ThreadTask
+{
+    String run(int t) throws Exception;
+}
+
+@Test
+public void
+testParallelDecode()
+    throws Exception
+{
+    // Encode serially, so that only decoding runs concurrently
+    final byte[][] encoded = new byte[NTHREADS][];
+    for(int t=0;t<NTHREADS;t++)
+	encoded[t] = encode(t);
+    parallel(new ThreadTask() {
+	public String run(int t) throws Exception {
+	    ASTRuntime rt = new ASTRuntime(ASTRuntime.Encoder.XDR);
+	    for(int pass=0;pass<NPASSES;pass++) {
+		rt.reset(new ByteIO(encoded[t]));
+		for(int i=0;i<NRECORDS;i++) {
+		    String failure = check(rt,t,i);
+		    if(failure != null)
+			return "pass "+pass+" record "+i+": bad "+failure;
+		}
+	    }
+	    return null;
+	}
+    });
+}
+
+@Test
+public void
+testParallelEncodeDecode()
+    throws Exception
+{
+    parallel(new ThreadTask() {
+	public String run(int t) throws Exception {
+	    byte[] encoded = encode(t);
+	    ASTRuntime rt = new ASTRuntime(ASTRuntime.Encoder.XDR,new ByteIO(encoded));
+	    for(int i=0;i<NRECORDS;i++) {
+		String failure = check(rt,t,i);
+		if(failure != null)
+		    return "record "+i+": bad "+failure;
+	    }
+	    return null;
+	}
+    });
+}
+
+static byte[]
+encode(int t)
+    throws IOException
+{
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ASTRuntime rt = new ASTRuntime(ASTRuntime.Encoder.XDR,new ByteIO(bos));
+    for(int i=0;i<NRECORDS;i++)
+	write(rt,t,i);
+    rt.flush();
+    return bos.toByteArray();
+}
+
+}